@@ -0,0 +1,164 @@
+package filetransferappjs;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Shared by every session's send path. Before a session writes a DATA packet it asks for the
+// packet's bytes, which are granted under a global and a per-session token bucket. Waiting
+// sessions are served strictly by priority class and with deficit round robin within a class,
+// so a small interactive fetch isn't stuck behind a bulk download and bulk downloads split the
+// remaining bandwidth evenly.
+public class BandwidthScheduler {
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_BULK = 1;
+    private static final int QUANTUM_BYTES = Packet.MAX_PACKET_SIZE; // Covers any single packet
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final TokenBucket globalBucket;
+    private final long sessionBytesPerSecond;
+    // Per priority class, in round robin order
+    private final List<ArrayDeque<Flow>> waitingFlows = List.of(new ArrayDeque<>(), new ArrayDeque<>());
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition grantsChanged = lock.newCondition();
+
+    // One session's transfer as seen by the scheduler.
+    public static class Flow {
+        private final int priority;
+        private final TokenBucket bucket;
+        private int deficit = 0;
+        private int requestedBytes = 0;
+        private boolean granted = true;
+
+        private Flow(int priority, long bytesPerSecond) {
+            this.priority = priority;
+            this.bucket = new TokenBucket(bytesPerSecond);
+        }
+    }
+
+    // Rates of zero or less mean unlimited.
+    public BandwidthScheduler(long globalBytesPerSecond, long sessionBytesPerSecond) {
+        this.globalBucket = new TokenBucket(globalBytesPerSecond);
+        this.sessionBytesPerSecond = sessionBytesPerSecond;
+    }
+
+    public static BandwidthScheduler unlimited() {
+        return new BandwidthScheduler(0, 0);
+    }
+
+    public Flow register(int priority) {
+        int priorityClass = Math.max(PRIORITY_INTERACTIVE, Math.min(PRIORITY_BULK, priority));
+        return new Flow(priorityClass, sessionBytesPerSecond);
+    }
+
+    public boolean isLimited(Flow flow) {
+        return !globalBucket.isUnlimited() || !flow.bucket.isUnlimited();
+    }
+
+    // Grants the bytes without waiting if the flow's and the global bucket hold enough tokens
+    // and no flow that would go first is waiting. Returns false otherwise, the caller then
+    // waits in acquire().
+    public boolean tryAcquire(Flow flow, int bytes) {
+        if (!isLimited(flow)) {
+            return true;
+        }
+        lock.lock();
+        try {
+            for (int priorityClass = PRIORITY_INTERACTIVE; priorityClass <= flow.priority; priorityClass++) {
+                if (!waitingFlows.get(priorityClass).isEmpty()) {
+                    return false; // Would overtake a flow of the same or a higher class
+                }
+            }
+            long now = System.nanoTime();
+            globalBucket.refill(now);
+            flow.bucket.refill(now);
+            if (!flow.bucket.hasTokens(bytes) || !globalBucket.hasTokens(bytes)) {
+                return false;
+            }
+            flow.bucket.consume(bytes);
+            globalBucket.consume(bytes);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks the calling session until it may send the given number of bytes.
+    public void acquire(Flow flow, int bytes) throws InterruptedIOException {
+        if (!isLimited(flow)) {
+            return; // Nothing to share
+        }
+        lock.lock();
+        try {
+            flow.requestedBytes = bytes;
+            flow.granted = false;
+            if (flow.deficit >= bytes) {
+                waitingFlows.get(flow.priority).addFirst(flow); // Still has deficit left from its turn
+            } else {
+                waitingFlows.get(flow.priority).add(flow);
+            }
+            while (!flow.granted) {
+                long waitNanos = schedule();
+                if (!flow.granted) {
+                    grantsChanged.awaitNanos(waitNanos);
+                }
+            }
+        } catch (InterruptedException e) {
+            waitingFlows.get(flow.priority).remove(flow);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Hands tokens to waiting flows and returns how long to wait before trying again. Must be
+    // called with the lock held.
+    private long schedule() {
+        long now = System.nanoTime();
+        long waitNanos = MAX_WAIT_NANOS;
+        globalBucket.refill(now);
+        boolean grantedAny = false;
+
+        for (ArrayDeque<Flow> waiting : waitingFlows) {
+            int skipped = 0; // Flows in a row held back by their own bucket
+            while (!waiting.isEmpty() && skipped < waiting.size()) {
+                Flow flow = waiting.peek();
+                flow.bucket.refill(now);
+                if (!flow.bucket.hasTokens(flow.requestedBytes)) {
+                    waitNanos = Math.min(waitNanos, flow.bucket.nanosUntil(flow.requestedBytes));
+                    waiting.add(waiting.poll()); // Over its own rate, let the next flow go
+                    skipped++;
+                    continue;
+                }
+                if (!globalBucket.hasTokens(flow.requestedBytes)) {
+                    // Out of global tokens: lower classes must not overtake this one
+                    waitNanos = Math.min(waitNanos, globalBucket.nanosUntil(flow.requestedBytes));
+                    signalIf(grantedAny);
+                    return Math.max(1, waitNanos);
+                }
+                if (flow.deficit < flow.requestedBytes) {
+                    flow.deficit += QUANTUM_BYTES; // Start of this flow's turn
+                }
+                waiting.poll();
+                flow.deficit -= flow.requestedBytes;
+                flow.bucket.consume(flow.requestedBytes);
+                globalBucket.consume(flow.requestedBytes);
+                flow.granted = true;
+                grantedAny = true;
+                skipped = 0;
+            }
+        }
+        signalIf(grantedAny);
+        return Math.max(1, waitNanos);
+    }
+
+    private void signalIf(boolean grantedAny) {
+        if (grantedAny) {
+            grantsChanged.signalAll();
+        }
+    }
+}
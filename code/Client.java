@@ -2,13 +2,14 @@ package filetransferappjs;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
 import java.nio.channels.SocketChannel;
 import java.security.NoSuchAlgorithmException;
 
 public class Client {
     public static void main(String[] args) throws NoSuchAlgorithmException {
         if (args.length < 6) {
-            System.out.println("Usage: java Client <address> <port> <upload/download> <filename> <windowSize> [dropPackets]");
+            System.out.println("Usage: java Client <address> <port> <upload/download> <filename> <windowSize> [dropPackets] [tcp/udp] [socketBufferSize] [interactive/bulk] [none/xor/rs]");
             return;
         }
 
@@ -18,11 +19,29 @@ public class Client {
         String filename = args[3];
         int windowSize = Integer.parseInt(args[4]);
         boolean dropPackets = Boolean.parseBoolean(args[5]);
+        String transport = args.length > 6 ? args[6].toLowerCase() : "tcp";
+        int socketBufferSize = args.length > 7 ? Integer.parseInt(args[7]) : 0;
+        String priority = args.length > 8 ? args[8].toLowerCase() : null;
+        String fec = args.length > 9 ? args[9].toLowerCase() : null; // Forward error correction
+
+        if ("udp".equals(transport)) {
+            try (DatagramChannel datagramChannel = DatagramChannel.open()) {
+                InetSocketAddress serverAddress = new InetSocketAddress(address, port);
+                datagramChannel.connect(serverAddress);
+                PacketHandler packetHandler = new PacketHandler(datagramChannel, serverAddress, socketBufferSize);
+                new ClientSession(packetHandler, mode, filename, windowSize, dropPackets, priority, fec);
+            } catch (IOException e) {
+                System.out.println("Client exception: " + e.getMessage());
+                e.printStackTrace();
+            }
+            return;
+        }
 
         try (SocketChannel socketChannel = SocketChannel.open()) {
             socketChannel.connect(new InetSocketAddress(address, port));
             socketChannel.configureBlocking(false);
-            new ClientSession(socketChannel, mode, filename, windowSize, dropPackets);
+            new ClientSession(new PacketHandler(socketChannel), mode, filename, windowSize, dropPackets, priority,
+                    fec);
         } catch (IOException e) {
             System.out.println("Client exception: " + e.getMessage());
             e.printStackTrace();
@@ -1,35 +1,43 @@
 package filetransferappjs;
 
 import java.io.*;
-import java.nio.channels.SocketChannel;
-import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Random;
 import java.util.logging.*;
 
 public class ClientSession {
+    private static final long IDLE_TIMEOUT_MS = 30000; // Give up on a server that stays silent this long
+    private static final long ACK_DELAY_MICROS = 2000; // Longest a receiver holds back a delayed ACK
+    private static final boolean SELECTIVE_ACK = true;
+    private static final int FEC_GROUP_SIZE = 16; // Largest FEC group the sender may use
     private final PacketHandler packetHandler;
     private final String mode;
     private final String filename;
     private final boolean dropPackets;
+    private final String priority; // "interactive" or "bulk"
+    private final String fec; // "xor" or "rs" to ask for forward error correction, null for none
+    private String confirmedFec = "none"; // What the server agreed to for the current transfer
     private final SlidingWindow slidingWindow;
     private int windowSize;
     private int sessionId;
     private byte[] key;
+    private int blockSize = Packet.MAX_PACKET_SIZE - Packet.HEADER_SIZE; // DATA payload size for uploads
     private final Random random = new Random();
     private long startTransferTime;
     private static final Logger logger = Logger.getLogger(ClientSession.class.getName());
 
-    public ClientSession(SocketChannel socketChannel, String mode, String filename, int windowSize, boolean dropPackets)
-            throws IOException, NoSuchAlgorithmException {
-        this.packetHandler = new PacketHandler(socketChannel);
+    public ClientSession(PacketHandler packetHandler, String mode, String filename, int windowSize, boolean dropPackets,
+            String priority, String fec) throws IOException, NoSuchAlgorithmException {
+        this.packetHandler = packetHandler;
+        this.priority = priority != null ? priority : "bulk";
+        this.fec = "xor".equals(fec) || "rs".equals(fec) ? fec : null;
+        if (this.fec != null) {
+            blockSize -= FecEncoder.PARITY_OVERHEAD; // A PARITY packet carries a whole block plus its own header
+        }
         this.mode = mode;
         this.filename = filename;
         this.windowSize = windowSize;
@@ -72,7 +80,6 @@ public class ClientSession {
 
     private void startSession() throws IOException, NoSuchAlgorithmException {
         initiateSession();
-        negotiateWindowSize();
 
         String filePath = null;
         if ("upload".equals(mode)) {
@@ -80,112 +87,184 @@ public class ClientSession {
         } else if ("download".equals(mode)) {
             filePath = downloadFile();
         }
+        endSession();
 
         if (filePath != null) {
             validateFile(filePath);
         }
     }
 
-    private void initiateSession() throws IOException {
+    private void initiateSession() {
         this.sessionId = new Random().nextInt();
         this.key = EncryptionUtil.generateKey(sessionId, System.currentTimeMillis());
-
-        Map<String, String> sessionStartOptions = new HashMap<>();
-        sessionStartOptions.put("sessionId", Integer.toString(sessionId));
-        sessionStartOptions.put("key", Arrays.toString(key));
-
-        Packet sessionStartPacket = new Packet(OpCode.SESSION_START, sessionStartOptions);
-        packetHandler.sendPacket(sessionStartPacket);
     }
 
-    private void negotiateWindowSize() throws IOException {
-        // Send desired window size to the server
-        Map<String, String> options = new HashMap<>();
+    // Builds the single packet that opens the session: session id, binary key, the window,
+    // block and ACK options, and the RRQ/WRQ itself.
+    private Packet buildHandshake(OpCode request) {
+        Packet handshakePacket = new Packet(OpCode.HANDSHAKE, 0, sessionId, key);
+        handshakePacket.setFileName(this.filename);
+
+        Map<String, String> options = handshakePacket.getOptions();
+        options.put("request", request.name());
         options.put("windowSize", String.valueOf(this.windowSize));
+        options.put("blockSize", String.valueOf(this.blockSize));
+        // Receivers ACK every half window (or after ACK_DELAY_MICROS) and report held ranges
+        options.put("ackEvery", String.valueOf(getAckEvery()));
+        options.put("ackDelayUs", String.valueOf(ACK_DELAY_MICROS));
+        options.put("sack", String.valueOf(SELECTIVE_ACK));
+        options.put("priority", priority); // Always sent, so nothing is left to what the server assumes
+        if (fec != null) {
+            options.put("fec", fec);
+            options.put("fecGroup", String.valueOf(FEC_GROUP_SIZE));
+        }
+        if (request == OpCode.WRQ) {
+            // Size hint so the server can set the upload's file size up front
+            options.put("tsize", String.valueOf(FileUtil.CLIENT_DIR.resolve(filename).toFile().length()));
+        }
+        System.out.println("Requested window size of " + this.windowSize + " sent to server.");
+        return handshakePacket;
+    }
 
-        Packet windowSizePacket = new Packet(OpCode.OACK, options);
-        packetHandler.sendPacket(windowSizePacket);
+    private int getAckEvery() {
+        return Math.max(1, windowSize / 2);
+    }
 
-        // Client assumes the server adjusts its window size accordingly
-        System.out.println("Requested window size of " + this.windowSize + " sent to server.");
+    private void endSession() throws IOException {
+        // Sequence number -1 distinguishes the session end from a transfer's END_OF_TRANSFER
+        packetHandler.sendPacket(new Packet(OpCode.END_OF_TRANSFER, -1, sessionId, new byte[0]));
     }
 
     private String uploadFile() throws IOException {
-        Packet wrqPacket = new Packet(OpCode.WRQ, this.filename);
-        packetHandler.sendPacket(wrqPacket);
+        confirmedFec = "none"; // Unless the OACK says otherwise
+        sendRequest(buildHandshake(OpCode.WRQ));
+        FecEncoder fecEncoder = "none".equals(confirmedFec) ? null
+                : new FecEncoder("rs".equals(confirmedFec), FEC_GROUP_SIZE, blockSize, sessionId);
 
         String filePath = FileUtil.CLIENT_DIR + File.separator + filename;
-        try (InputStream fileStream = Files.newInputStream(Paths.get(filePath))) {
-            byte[] buffer = new byte[Packet.MAX_PACKET_SIZE - Packet.HEADER_SIZE];
-            int bytesRead;
-            while ((bytesRead = fileStream.read(buffer)) != -1) {
-                byte[] dataChunk = Arrays.copyOf(buffer, bytesRead); // Copy the bytes read
-                byte[] encryptedContent = EncryptionUtil.xorEncryptDecrypt(dataChunk, key);
-
-                Packet packet = new Packet(OpCode.DATA, slidingWindow.getNextSequenceNumber(), sessionId,
-                        encryptedContent);
-                slidingWindow.queuePacket(packet);
-                if (!dropPackets || random.nextDouble() >= 0.01) {
-                    startTransferTimer();
-                    packetHandler.sendPacket(packet);
-                    displayThroughput(packet.getData().length);
-                }
-            }
-        }
-
-        // Handle retransmissions
-        Queue<Packet> packetsForRetransmission = slidingWindow.getPacketsForRetransmission();
-        for (Packet packet : packetsForRetransmission) {
-            startTransferTimer();
-            packetHandler.sendPacket(packet);
-            displayThroughput(packet.getData().length);
+        TransferSender sender = new TransferSender(packetHandler, slidingWindow, sessionId);
+        if (dropPackets) {
+            sender.setDropRate(0.01); // Simulate a 1% packet drop
         }
-
-        Packet endOfTransferPacket = new Packet(OpCode.END_OF_TRANSFER, slidingWindow.getNextSequenceNumber(),
-                sessionId, new byte[0]);
-        packetHandler.sendPacket(endOfTransferPacket);
+        sender.setBatchListener((batch, startNanos) -> {
+            startTransferTime = startNanos;
+            for (Packet packet : batch) {
+                displayThroughput(packet.getData().length);
+            }
+        });
+        sender.sendFile(Paths.get(filePath), blockSize, key, fecEncoder);
+        sender.sendEndOfTransfer();
 
         System.out.println("File upload completed for: " + filename);
 
         return filePath;
     }
 
+    // Sends a write handshake until the server confirms it with an OACK, or with ACK -1 if the
+    // OACK was lost and the handshake repeated, meaning it is ready for DATA 0. Keeps trying
+    // for IDLE_TIMEOUT_MS since a busy server may take a while to get to us.
+    private void sendRequest(Packet requestPacket) throws IOException {
+        long giveUpTime = System.currentTimeMillis() + IDLE_TIMEOUT_MS;
+        while (System.currentTimeMillis() < giveUpTime) {
+            packetHandler.sendPacket(requestPacket);
+            long deadline = System.currentTimeMillis() + slidingWindow.getRetransmissionTimeoutMs();
+            PacketView reply;
+            while ((reply = packetHandler.receiveAck(deadline - System.currentTimeMillis())) != null) {
+                if (reply.getOpCode() == OpCode.OACK) {
+                    applyConfirmedOptions(reply.toPacket());
+                    return;
+                }
+                if (reply.getOpCode() == OpCode.ACK && reply.getSequenceNumber() == -1) {
+                    return;
+                }
+            }
+        }
+        throw new IOException("Server did not respond to " + requestPacket.getOpCode());
+    }
+
+    private void applyConfirmedOptions(Packet oackPacket) {
+        Map<String, String> options = oackPacket.getOptions();
+        System.out.println("Server adjusted window size to: " + options.get("windowSize"));
+        if (options.containsKey("blockSize")) {
+            blockSize = Math.min(blockSize, Integer.parseInt(options.get("blockSize")));
+        }
+        confirmedFec = fec != null ? options.getOrDefault("fec", "none") : "none";
+    }
+
     private String downloadFile() throws IOException {
-        Packet requestPacket = new Packet(OpCode.RRQ, this.filename);
+        // The server answers with an OACK followed directly by the first window of DATA
+        Packet requestPacket = buildHandshake(OpCode.RRQ);
         packetHandler.sendPacket(requestPacket);
 
-        ByteArrayOutputStream downloadedContent = new ByteArrayOutputStream();
-        boolean fileTransferComplete = false;
-
-        while (!fileTransferComplete) {
-            Packet receivedPacket = packetHandler.receivePacket();
+        // Set up from the request, the OACK saying whether the server agreed may itself be lost
+        FecDecoder fecDecoder = fec != null ? new FecDecoder("rs".equals(fec), sessionId) : null;
+        ReceiveWindow receiveWindow = new ReceiveWindow(windowSize, getAckEvery(), ACK_DELAY_MICROS, SELECTIVE_ACK,
+                fecDecoder);
+        long lastPacketTime = System.currentTimeMillis();
+
+        // Written in place as packets arrive, HOLE packets leave sparse regions behind
+        String downloadedFilePath;
+        try (ReceiveStore downloadStore = new ReceiveStore(FileUtil.CLIENT_DIR, this.filename, -1,
+                ReceiveStore.Durability.NONE)) {
+            boolean fileTransferComplete = false;
+            long filePosition = 0;
+            while (!fileTransferComplete) {
+                long timeout = receiveWindow.hasPendingAck() ? receiveWindow.getAckDelayRemainingMillis()
+                        : slidingWindow.getRetransmissionTimeoutMs();
+                PacketView receivedPacket = packetHandler.receiveView(timeout);
+
+                if (receivedPacket == null) {
+                    if (receiveWindow.hasPendingAck()) {
+                        packetHandler.queuePacket(receiveWindow.buildAck(sessionId)); // Delayed ACK timer fired
+                        continue;
+                    }
+                    if (System.currentTimeMillis() - lastPacketTime > IDLE_TIMEOUT_MS) {
+                        throw new IOException("Server stopped sending packets");
+                    }
+                    if (receiveWindow.getExpectedSequenceNumber() == 0) {
+                        packetHandler.sendPacket(requestPacket); // Handshake may have been lost
+                    }
+                    continue;
+                }
+                lastPacketTime = System.currentTimeMillis();
 
-            // Simulate a 1% packet drop
-            if (dropPackets && random.nextDouble() < 0.01) {
-                continue;
-            }
+                // Simulate a 1% packet drop
+                if (dropPackets && random.nextDouble() < 0.01) {
+                    continue;
+                }
 
-            if (receivedPacket != null) {
-                if (receivedPacket.getOpCode() == OpCode.DATA && receivedPacket.getData() != null) {
-                    byte[] decryptedData = EncryptionUtil.xorEncryptDecrypt(receivedPacket.getData(), key);
-                    downloadedContent.write(decryptedData);
-                    slidingWindow.acknowledgePacket(receivedPacket.getSequenceNumber());
-                    packetHandler.sendAck(receivedPacket.getSequenceNumber(), sessionId); // ACK each received DATA
-                                                                                          // packet.
-                    startTransferTimer();
-                    displayThroughput(decryptedData.length);
-                } else if (receivedPacket.getOpCode() == OpCode.END_OF_TRANSFER) {
-                    slidingWindow.acknowledgePacket(receivedPacket.getSequenceNumber());
-                    packetHandler.sendAck(receivedPacket.getSequenceNumber(), sessionId); // ACK the END_OF_TRANSFER
-                                                                                          // packet.
-                    fileTransferComplete = true; // Mark transfer as complete to exit the loop.
+                OpCode opCode = receivedPacket.getOpCode();
+                if (opCode == OpCode.OACK) {
+                    applyConfirmedOptions(receivedPacket.toPacket());
+                    continue;
+                }
+                if (opCode != OpCode.DATA && opCode != OpCode.HOLE && opCode != OpCode.PARITY
+                        && opCode != OpCode.END_OF_TRANSFER) {
+                    continue; // Stray control packet
+                }
+                for (PacketView inOrderPacket : receiveWindow.receive(receivedPacket)) {
+                    if (inOrderPacket.getOpCode() == OpCode.END_OF_TRANSFER) {
+                        fileTransferComplete = true; // Mark transfer as complete to exit the loop.
+                    } else if (inOrderPacket.getOpCode() == OpCode.HOLE) {
+                        long holeLength = inOrderPacket.getHoleLength();
+                        downloadStore.writeHole(filePosition, holeLength); // Stays sparse on disk
+                        filePosition += holeLength;
+                    } else if (inOrderPacket.getDataLength() > 0) {
+                        byte[] decryptedData = EncryptionUtil.xorEncryptDecrypt(inOrderPacket.getPayload(), key);
+                        downloadStore.write(filePosition, decryptedData);
+                        filePosition += decryptedData.length;
+                        startTransferTimer();
+                        displayThroughput(decryptedData.length);
+                    }
+                }
+                if (receiveWindow.isAckDue()) {
+                    // One cumulative ACK covers every packet received since the last one
+                    packetHandler.queuePacket(receiveWindow.buildAck(sessionId));
                 }
             }
-        }
 
-        byte[] fileContent = downloadedContent.toByteArray();
-        String downloadedFilePath = FileUtil.writeFile(this.filename, fileContent, false); // Ensure this method
-                                                                                           // correctly writes the file.
+            downloadedFilePath = downloadStore.commit();
+        }
         System.out.println("Download completed for: " + this.filename);
 
         return downloadedFilePath;
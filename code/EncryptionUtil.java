@@ -1,5 +1,7 @@
 package filetransferappjs;
 
+import java.nio.ByteBuffer;
+
 public class EncryptionUtil {
     public static byte[] generateKey(int senderId, long randomNumber) {
         String keyBase = senderId + ":" + randomNumber;
@@ -7,12 +9,28 @@ public class EncryptionUtil {
     }
 
     public static byte[] xorEncryptDecrypt(byte[] data, byte[] key) {
-        byte[] result = new byte[data.length];
+        return xorEncryptDecrypt(data, data.length, key);
+    }
+
+    // Only the first length bytes of data, so a partly filled read buffer needs no copy first.
+    public static byte[] xorEncryptDecrypt(byte[] data, int length, byte[] key) {
+        byte[] result = new byte[length];
 
-        for (int i = 0; i < data.length; i++) {
+        for (int i = 0; i < length; i++) {
             result[i] = (byte) (data[i] ^ key[i % key.length]);
         }
 
         return result;
     }
+
+    // Decrypts a received payload straight out of the receive buffer.
+    public static byte[] xorEncryptDecrypt(ByteBuffer data, byte[] key) {
+        byte[] result = new byte[data.remaining()];
+
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) (data.get(data.position() + i) ^ key[i % key.length]);
+        }
+
+        return result;
+    }
 }
@@ -0,0 +1,134 @@
+package filetransferappjs;
+
+// Systematic erasure code over GF(256) behind the FEC parity packets. Each parity row is a linear
+// combination of a group's data shards: plain XOR (every coefficient 1, one row per group) or
+// Reed-Solomon with Cauchy coefficients, where any m lost shards can be rebuilt from any m
+// parity rows. Shards shorter than the parity are treated as zero padded.
+public class ErasureCode {
+    public static final int MAX_SHARDS = 128; // Per group, for data shards and parity rows alike
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+
+    static {
+        // Tables for the field generated by x^8 + x^4 + x^3 + x^2 + 1
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if ((x & 0x100) != 0) {
+                x ^= 0x11d;
+            }
+        }
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+    }
+
+    private ErasureCode() {
+    }
+
+    public static int coefficient(boolean reedSolomon, int row, int column) {
+        // Cauchy matrix 1 / (x_row + y_column) with x_row = MAX_SHARDS + row and y_column = column,
+        // the two sets never meet so no entry divides by zero
+        return reedSolomon ? inverse((MAX_SHARDS + row) ^ column) : 1;
+    }
+
+    // target += coefficient * shard
+    public static void addScaled(byte[] target, byte[] shard, int coefficient) {
+        addScaled(target, 0, shard, coefficient);
+    }
+
+    // The same with the shard starting at targetOffset in the target.
+    public static void addScaled(byte[] target, int targetOffset, byte[] shard, int coefficient) {
+        int length = Math.min(target.length - targetOffset, shard.length);
+        if (coefficient == 1) {
+            for (int i = 0; i < length; i++) {
+                target[targetOffset + i] ^= shard[i];
+            }
+            return;
+        }
+        int logCoefficient = LOG[coefficient];
+        for (int i = 0; i < length; i++) {
+            int value = shard[i] & 0xFF;
+            if (value != 0) {
+                target[targetOffset + i] ^= EXP[LOG[value] + logCoefficient];
+            }
+        }
+    }
+
+    public static int multiply(int a, int b) {
+        return a == 0 || b == 0 ? 0 : EXP[LOG[a] + LOG[b]];
+    }
+
+    // Rebuilds the data shards in missingColumns. syndromes[r] is parity row parityRows[r] with
+    // every known data shard of the group already added out, and there must be exactly one
+    // syndrome per missing shard. Returns the shards in the order of missingColumns.
+    public static byte[][] recover(boolean reedSolomon, int[] missingColumns, int[] parityRows, byte[][] syndromes) {
+        int size = missingColumns.length;
+        int[][] matrix = new int[size][size];
+        for (int r = 0; r < size; r++) {
+            for (int c = 0; c < size; c++) {
+                matrix[r][c] = coefficient(reedSolomon, parityRows[r], missingColumns[c]);
+            }
+        }
+        int[][] inverted = invert(matrix);
+
+        int shardLength = syndromes[0].length;
+        byte[][] recovered = new byte[size][];
+        for (int c = 0; c < size; c++) {
+            recovered[c] = new byte[shardLength];
+            for (int r = 0; r < size; r++) {
+                if (inverted[c][r] != 0) {
+                    addScaled(recovered[c], syndromes[r], inverted[c][r]);
+                }
+            }
+        }
+        return recovered;
+    }
+
+    private static int inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+
+    // Gauss-Jordan elimination. Square Cauchy submatrices are always invertible, and the XOR
+    // code never has more than one row.
+    private static int[][] invert(int[][] matrix) {
+        int size = matrix.length;
+        int[][] inverted = new int[size][size];
+        for (int i = 0; i < size; i++) {
+            inverted[i][i] = 1;
+        }
+        for (int column = 0; column < size; column++) {
+            int pivot = column;
+            while (matrix[pivot][column] == 0) {
+                pivot++;
+                if (pivot == size) {
+                    throw new IllegalArgumentException("Parity rows are not independent");
+                }
+            }
+            int[] swap = matrix[pivot];
+            matrix[pivot] = matrix[column];
+            matrix[column] = swap;
+            swap = inverted[pivot];
+            inverted[pivot] = inverted[column];
+            inverted[column] = swap;
+
+            int scale = inverse(matrix[column][column]);
+            for (int c = 0; c < size; c++) {
+                matrix[column][c] = multiply(matrix[column][c], scale);
+                inverted[column][c] = multiply(inverted[column][c], scale);
+            }
+            for (int row = 0; row < size; row++) {
+                int factor = matrix[row][column];
+                if (row != column && factor != 0) {
+                    for (int c = 0; c < size; c++) {
+                        matrix[row][c] ^= multiply(factor, matrix[column][c]);
+                        inverted[row][c] ^= multiply(factor, inverted[column][c]);
+                    }
+                }
+            }
+        }
+        return inverted;
+    }
+}
@@ -0,0 +1,171 @@
+package filetransferappjs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Receiver side of forward error correction, fed by ReceiveWindow. Keeps the shards of recent
+// DATA and HOLE packets and the parity of groups with gaps, and rebuilds the missing packets as
+// soon as a group has a parity row for every gap (see FecEncoder for the format). Also counts
+// DATA that never showed up in order, which the ACKs report back for the sender's parity sizing.
+public class FecDecoder {
+    private final boolean reedSolomon;
+    private final int sessionId;
+    private final TreeMap<Integer, byte[]> shards = new TreeMap<>(); // By sequence number
+    private final TreeMap<Integer, ParityGroup> groups = new TreeMap<>(); // By first sequence number
+    private int highestSeqNum = -1;
+    private int lostCount = 0;
+
+    private static class ParityGroup {
+        private final int size;
+        private final List<Integer> rows = new ArrayList<>();
+        private final List<byte[]> parityShards = new ArrayList<>();
+
+        private ParityGroup(int size) {
+            this.size = size;
+        }
+    }
+
+    public FecDecoder(boolean reedSolomon, int sessionId) {
+        this.reedSolomon = reedSolomon;
+        this.sessionId = sessionId;
+    }
+
+    public int getLostCount() {
+        return lostCount;
+    }
+
+    // Takes any packet of the transfer and returns the DATA or HOLE packets it made recoverable.
+    // expectedSeqNum is the receive window's next in-order sequence number.
+    public List<PacketView> receive(PacketView packet, int expectedSeqNum) {
+        int seqNum = packet.getSequenceNumber();
+        Integer groupStart;
+        if (packet.getOpCode() == OpCode.PARITY) {
+            ByteBuffer parity = packet.getPayload();
+            if (parity.remaining() < 2 * Integer.BYTES) {
+                return Collections.emptyList(); // Malformed
+            }
+            int size = parity.getInt();
+            int row = parity.getInt();
+            if (size <= 0 || size > ErasureCode.MAX_SHARDS || row < 0 || row >= ErasureCode.MAX_SHARDS
+                    || seqNum + size <= expectedSeqNum) {
+                return Collections.emptyList(); // Malformed, or every DATA of the group is already in
+            }
+            ParityGroup group = groups.computeIfAbsent(seqNum, start -> new ParityGroup(size));
+            if (group.rows.contains(row)) {
+                return Collections.emptyList(); // Duplicate datagram
+            }
+            byte[] parityShard = new byte[parity.remaining()];
+            parity.get(parityShard);
+            group.rows.add(row);
+            group.parityShards.add(parityShard);
+            groupStart = seqNum;
+        } else {
+            if (seqNum > highestSeqNum + 1) {
+                lostCount += seqNum - highestSeqNum - 1; // Missing for now, reordering counts too
+            }
+            highestSeqNum = Math.max(highestSeqNum, seqNum);
+            boolean hole = packet.getOpCode() == OpCode.HOLE;
+            if ((packet.getOpCode() != OpCode.DATA && !hole) || seqNum < expectedSeqNum - ErasureCode.MAX_SHARDS) {
+                return Collections.emptyList();
+            }
+            shards.computeIfAbsent(seqNum, key -> toShard(packet.getPayload(), hole));
+            groupStart = groups.floorKey(seqNum);
+            if (groupStart != null && seqNum >= groupStart + groups.get(groupStart).size) {
+                groupStart = null; // No parity for this packet's group yet
+            }
+        }
+
+        List<PacketView> recovered = groupStart != null ? recover(groupStart) : Collections.emptyList();
+        prune(expectedSeqNum);
+        return recovered;
+    }
+
+    private List<PacketView> recover(int groupStart) {
+        ParityGroup group = groups.get(groupStart);
+        List<Integer> missing = new ArrayList<>();
+        for (int seqNum = groupStart; seqNum < groupStart + group.size; seqNum++) {
+            if (!shards.containsKey(seqNum)) {
+                missing.add(seqNum);
+            }
+        }
+        if (missing.size() > group.rows.size()) {
+            return Collections.emptyList(); // More gaps than parity so far
+        }
+        groups.remove(groupStart);
+        if (missing.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // Take the known packets out of one parity row per gap, what is left are the gaps
+        int[] missingColumns = new int[missing.size()];
+        int[] parityRows = new int[missing.size()];
+        byte[][] syndromes = new byte[missing.size()][];
+        for (int i = 0; i < missing.size(); i++) {
+            missingColumns[i] = missing.get(i) - groupStart;
+            parityRows[i] = group.rows.get(i);
+            syndromes[i] = group.parityShards.get(i).clone();
+            for (int seqNum = groupStart; seqNum < groupStart + group.size; seqNum++) {
+                byte[] shard = shards.get(seqNum);
+                if (shard != null) {
+                    ErasureCode.addScaled(syndromes[i], shard,
+                            ErasureCode.coefficient(reedSolomon, parityRows[i], seqNum - groupStart));
+                }
+            }
+        }
+        byte[][] rebuilt;
+        try {
+            rebuilt = ErasureCode.recover(reedSolomon, missingColumns, parityRows, syndromes);
+        } catch (IllegalArgumentException e) {
+            return Collections.emptyList(); // Rows that don't fit together, leave the gaps to the retransmission
+        }
+
+        List<PacketView> recovered = new ArrayList<>();
+        for (int i = 0; i < rebuilt.length; i++) {
+            int prefix = ((rebuilt[i][0] & 0xFF) << 8) | (rebuilt[i][1] & 0xFF);
+            int length = prefix & ~FecEncoder.HOLE_FLAG;
+            if (length > rebuilt[i].length - Short.BYTES) {
+                continue; // Inconsistent parity, leave the gap to the retransmission
+            }
+            int seqNum = missing.get(i);
+            byte[] data = Arrays.copyOfRange(rebuilt[i], Short.BYTES, Short.BYTES + length);
+            OpCode opCode = (prefix & FecEncoder.HOLE_FLAG) != 0 ? OpCode.HOLE : OpCode.DATA;
+            try {
+                recovered.add(PacketView.of(new Packet(opCode, seqNum, sessionId, data)));
+            } catch (IllegalArgumentException e) {
+                continue; // Inconsistent parity as well, e.g. a HOLE that lost its length
+            }
+            shards.put(seqNum, rebuilt[i]);
+        }
+        return recovered;
+    }
+
+    // Forgets groups whose DATA has all been delivered, and shards no group can still need.
+    private void prune(int expectedSeqNum) {
+        while (!groups.isEmpty()) {
+            Map.Entry<Integer, ParityGroup> oldest = groups.firstEntry();
+            if (oldest.getKey() + oldest.getValue().size > expectedSeqNum) {
+                break;
+            }
+            groups.pollFirstEntry();
+        }
+        int oldestNeeded = expectedSeqNum - ErasureCode.MAX_SHARDS; // A group's parity may still be on its way
+        if (!groups.isEmpty()) {
+            oldestNeeded = Math.min(oldestNeeded, groups.firstKey());
+        }
+        shards.headMap(oldestNeeded).clear();
+    }
+
+    private static byte[] toShard(ByteBuffer payload, boolean hole) {
+        int prefix = payload.remaining() | (hole ? FecEncoder.HOLE_FLAG : 0);
+        byte[] shard = new byte[Short.BYTES + payload.remaining()];
+        shard[0] = (byte) (prefix >> 8);
+        shard[1] = (byte) prefix;
+        payload.duplicate().get(shard, Short.BYTES, payload.remaining());
+        return shard;
+    }
+}
@@ -0,0 +1,104 @@
+package filetransferappjs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Sender side of forward error correction. DATA packets are taken in groups and every group is
+// followed by PARITY packets the receiver can rebuild lost DATA from, without waiting a round
+// trip for a retransmission. The receiver reports how many DATA packets went missing in each
+// ACK and the parity follows that loss rate: Reed-Solomon varies the parity rows per group,
+// XOR (one row) varies the group size instead.
+// A PARITY packet carries the group's first sequence number, and as data the group size, its
+// row and the parity shard. A shard is a DATA or HOLE payload behind a 2 byte length prefix,
+// whose top bit marks a HOLE.
+public class FecEncoder {
+    public static final int PARITY_OVERHEAD = 2 * Integer.BYTES + Short.BYTES; // Room a PARITY needs beyond a block
+    public static final int HOLE_FLAG = 0x8000; // Payloads are shorter than a packet, the top bit is free
+    private static final double PARITY_PER_LOSS = 2.0; // Parity rows per expected loss, covers short bursts
+    private static final double LOSS_SMOOTHING = 0.25;
+
+    private final boolean reedSolomon;
+    private final int maxGroupSize;
+    private final int shardLength;
+    private final int sessionId;
+    private double lossRate;
+    private int reportedLost = 0; // The receiver's count at the last loss sample
+    private int reportedSeqNum = -1; // And the cumulative ACK it came with
+    private int groupStart;
+    private int groupSize;
+    private int groupCount = 0; // DATA packets in the group so far
+    private byte[][] parityShards; // Empty while the loss rate needs no parity
+
+    public FecEncoder(boolean reedSolomon, int maxGroupSize, int blockSize, int sessionId) {
+        this.reedSolomon = reedSolomon;
+        this.maxGroupSize = maxGroupSize;
+        this.shardLength = Short.BYTES + blockSize;
+        this.sessionId = sessionId;
+        this.lossRate = 1 / (PARITY_PER_LOSS * maxGroupSize); // One row per group until the receiver reports
+    }
+
+    // Adds a DATA or HOLE packet to the current group. Returns the group's parity once the group
+    // is full.
+    public List<Packet> add(Packet dataPacket) {
+        if (groupCount == 0) {
+            startGroup(dataPacket.getSequenceNumber());
+        }
+        byte[] data = dataPacket.getData();
+        int prefix = data.length | (dataPacket.getOpCode() == OpCode.HOLE ? HOLE_FLAG : 0);
+        for (int row = 0; row < parityShards.length; row++) {
+            int coefficient = ErasureCode.coefficient(reedSolomon, row, groupCount);
+            parityShards[row][0] ^= (byte) ErasureCode.multiply(coefficient, prefix >> 8);
+            parityShards[row][1] ^= (byte) ErasureCode.multiply(coefficient, prefix & 0xFF);
+            ErasureCode.addScaled(parityShards[row], Short.BYTES, data, coefficient);
+        }
+        groupCount++;
+        return groupCount == groupSize ? finish() : Collections.emptyList();
+    }
+
+    // Closes a partly filled group, e.g. at the end of the file, and returns its parity.
+    public List<Packet> finish() {
+        List<Packet> parityPackets = new ArrayList<>();
+        for (int row = 0; groupCount > 0 && row < parityShards.length; row++) {
+            ByteBuffer parity = ByteBuffer.allocate(2 * Integer.BYTES + shardLength);
+            parity.putInt(groupCount);
+            parity.putInt(row);
+            parity.put(parityShards[row]);
+            parityPackets.add(new Packet(OpCode.PARITY, groupStart, sessionId, parity.array()));
+        }
+        groupCount = 0;
+        return parityPackets;
+    }
+
+    // Folds the loss count a receiver appends to its ACKs (see ReceiveWindow.buildAck) into the
+    // loss rate, once the ACK has moved at least a group past the previous sample.
+    public void onAck(PacketView ackPacket) {
+        ByteBuffer ackData = ackPacket.getPayload();
+        int seqNum = ackPacket.getSequenceNumber();
+        if (ackData.remaining() % (2 * Integer.BYTES) != Integer.BYTES || seqNum - reportedSeqNum < maxGroupSize) {
+            return;
+        }
+        int lost = ackData.getInt(ackData.limit() - Integer.BYTES);
+        double sample = Math.min(1, Math.max(0, (double) (lost - reportedLost) / (seqNum - reportedSeqNum)));
+        lossRate += LOSS_SMOOTHING * (sample - lossRate);
+        reportedLost = lost;
+        reportedSeqNum = seqNum;
+    }
+
+    private void startGroup(int seqNum) {
+        groupStart = seqNum;
+        double expectedLosses = PARITY_PER_LOSS * maxGroupSize * lossRate;
+        int rows;
+        if (reedSolomon) {
+            groupSize = maxGroupSize;
+            rows = Math.min(maxGroupSize, (int) Math.ceil(expectedLosses - 0.1));
+        } else {
+            // One row covers one loss, so shrink the group until it expects about half a loss
+            groupSize = lossRate > 0 ? (int) Math.max(2, Math.min(maxGroupSize, 1 / (PARITY_PER_LOSS * lossRate)))
+                    : maxGroupSize;
+            rows = expectedLosses >= 0.1 ? 1 : 0;
+        }
+        parityShards = new byte[rows][shardLength];
+    }
+}
@@ -6,37 +6,31 @@ import java.security.NoSuchAlgorithmException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FileUtil {
     static final Path CLIENT_DIR = Paths.get("C:", "Users", "joels", "OneDrive", "Oswego", "Spring 2024", "CSC445", "project2js", "filetransferappjs", "src", "main", "java", "filetransferappjs", "clientDir");
     static final Path SERVER_DIR = Paths.get(System.getProperty("user.home"), "CSC445", "project2js", "filetransferappjs", "src", "main", "java", "filetransferappjs", "serverDir");
+    // Next number to try for each receivedFile_ name, so a name never probes past earlier ones
+    private static final ConcurrentHashMap<Path, AtomicInteger> nextFileNumbers = new ConcurrentHashMap<>();
 
-    // Writes a byte array content to a unique file in the server or client
-    // directory based on operation.
-    public static String writeFile(String fileName, byte[] content, boolean isUpload) throws IOException {
-        Path dir = isUpload ? SERVER_DIR : CLIENT_DIR;
-        String filePath = generateUniqueFilePath(dir, fileName);
-        try (FileOutputStream fos = new FileOutputStream(filePath)) {
-            fos.write(content);
-        }
-        return filePath; // Return the path of the saved file
-    }
-    
     // Generates a unique file path with an incrementing number if the file already
-    // exists.
+    // exists. Each number is handed out once, so concurrent sessions never pick the same
+    // name and only files created outside this process are probed past.
     static String generateUniqueFilePath(Path dir, String originalFileName) {
-        int count = 0;
         String fileName = "receivedFile_" + stripExtension(originalFileName);
         String extension = getFileExtension(originalFileName);
-        Path path = dir.resolve(fileName + extension);
-    
-        while (Files.exists(path)) {
-            count++;
-            fileName = "receivedFile_" + stripExtension(originalFileName) + "_" + count;
-            path = dir.resolve(fileName + extension);
+        AtomicInteger nextNumber = nextFileNumbers.computeIfAbsent(dir.resolve(fileName + extension),
+                name -> new AtomicInteger());
+
+        while (true) {
+            int count = nextNumber.getAndIncrement();
+            Path path = dir.resolve(count == 0 ? fileName + extension : fileName + "_" + count + extension);
+            if (!Files.exists(path)) {
+                return path.toString();
+            }
         }
-    
-        return path.toString();
     }
 
     // Utility method to get the file extension.
@@ -9,7 +9,10 @@ public enum OpCode {
     ERROR(5),    // Error
     OACK(6),     // Option Acknowledgment, only used for windowsize option
     SESSION_START(7), // Session start (custom extension for session initiation)
-    END_OF_TRANSFER(8); // End of transfer (custom extension for session termination)
+    END_OF_TRANSFER(8), // End of transfer (custom extension for session termination)
+    HANDSHAKE(9), // Session start, options and RRQ/WRQ in one packet (custom extension)
+    PARITY(10), // Forward error correction parity for a group of DATA packets (custom extension)
+    HOLE(11); // Run of zero bytes sent as its length instead of DATA (custom extension)
 
     private final int value;
 
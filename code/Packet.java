@@ -56,6 +56,10 @@ public class Packet {
         return fileName;
     }
 
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
     public byte[] getData() {
         return data;
     }
@@ -144,33 +148,25 @@ public class Packet {
         Map<String, String> options = new HashMap<>();
 
         // Filename
-        int fileNameLength = buffer.getInt();
-        if (fileNameLength > 0) {
-            byte[] fileNameBytes = new byte[fileNameLength];
-            buffer.get(fileNameBytes);
+        byte[] fileNameBytes = readField(buffer);
+        if (fileNameBytes.length > 0) {
             fileName = new String(fileNameBytes, StandardCharsets.UTF_8);
         }
 
         // Data
-        int dataLength = buffer.getInt();
-        if (dataLength > 0) {
-            data = new byte[dataLength];
-            buffer.get(data);
+        byte[] dataBytes = readField(buffer);
+        if (dataBytes.length > 0) {
+            data = dataBytes;
         }
 
         // Options
         int optionsSize = buffer.getInt();
+        if (optionsSize < 0) {
+            throw new IllegalArgumentException("Malformed packet");
+        }
         for (int i = 0; i < optionsSize; i++) {
-            int keyLength = buffer.getInt();
-            byte[] keyBytes = new byte[keyLength];
-            buffer.get(keyBytes);
-            String key = new String(keyBytes, StandardCharsets.UTF_8);
-
-            int valueLength = buffer.getInt();
-            byte[] valueBytes = new byte[valueLength];
-            buffer.get(valueBytes);
-            String value = new String(valueBytes, StandardCharsets.UTF_8);
-
+            String key = new String(readField(buffer), StandardCharsets.UTF_8);
+            String value = new String(readField(buffer), StandardCharsets.UTF_8);
             options.put(key, value);
         }
 
@@ -184,4 +180,16 @@ public class Packet {
         packet.lastSent = lastSent;
         return packet;
     }
+
+    // Reads a length-prefixed field. A length the buffer can't hold means a malformed packet
+    // rather than a huge allocation.
+    private static byte[] readField(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Malformed packet");
+        }
+        byte[] field = new byte[length];
+        buffer.get(field);
+        return field;
+    }
 }
\ No newline at end of file
@@ -1,80 +1,379 @@
 package filetransferappjs;
 
 import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.Set;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
 
 public class PacketHandler {
+    private static final int MAX_DATAGRAMS_PER_BATCH = 64; // Upper bound on datagrams drained per receive call
+    private static final int FLUSH_THRESHOLD_BYTES = 64 * 1024; // Queued bytes that force a flush
+    private static final int MAX_WAITING_SESSIONS = 64;
+    private static final long IO_TIMEOUT_MS = 30000; // Give up on a peer that stops reading, or stops mid-frame, this long
+
     private final SocketChannel socketChannel;
+    private final DatagramChannel datagramChannel;
     private final Selector selector;
+    private final SelectionKey selectionKey;
+    private final Queue<PacketView> receivedPackets = new ArrayDeque<>(); // Datagrams drained but not yet consumed
+    // One receive buffer and view per datagram of a batch, reused by every drain
+    private final ByteBuffer[] datagramBuffers = new ByteBuffer[MAX_DATAGRAMS_PER_BATCH];
+    private final PacketView[] datagramViews = new PacketView[MAX_DATAGRAMS_PER_BATCH];
+    private final ByteBuffer frameLengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+    private final ByteBuffer frameBuffer = ByteBuffer.allocateDirect(Packet.MAX_PACKET_SIZE);
+    private final PacketView frameView = new PacketView(frameBuffer);
+    private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>(); // Encoded packets not yet written
+    private int pendingWriteBytes = 0;
+    private SocketAddress peer; // Remote end of the datagram transport, latched on first receive if unknown
+    private final boolean latching; // Serves one peer after another, see releasePeer
+    // Session starts from other peers that arrived while latched, served in arrival order
+    private final Map<SocketAddress, PacketView> waitingSessions = new LinkedHashMap<>();
 
     public PacketHandler(SocketChannel socketChannel) throws IOException {
         this.socketChannel = socketChannel;
+        this.datagramChannel = null;
+        this.latching = false;
         this.selector = Selector.open();
         socketChannel.configureBlocking(false);
-        socketChannel.register(selector, SelectionKey.OP_READ);
+        this.selectionKey = socketChannel.register(selector, SelectionKey.OP_READ);
+    }
+
+    // UDP transport: one datagram per packet. A null peer makes the handler wait for the first
+    // SESSION_START or HANDSHAKE and latch onto its sender (server side); socketBufferSize <= 0
+    // keeps the OS defaults.
+    public PacketHandler(DatagramChannel datagramChannel, SocketAddress peer, int socketBufferSize) throws IOException {
+        this.socketChannel = null;
+        this.datagramChannel = datagramChannel;
+        this.peer = peer;
+        this.latching = peer == null;
+        if (socketBufferSize > 0) {
+            datagramChannel.setOption(StandardSocketOptions.SO_RCVBUF, socketBufferSize);
+            datagramChannel.setOption(StandardSocketOptions.SO_SNDBUF, socketBufferSize);
+        }
+        ByteBuffer batchBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAMS_PER_BATCH * Packet.MAX_PACKET_SIZE);
+        for (int i = 0; i < MAX_DATAGRAMS_PER_BATCH; i++) {
+            datagramBuffers[i] = batchBuffer.duplicate().position(i * Packet.MAX_PACKET_SIZE)
+                    .limit((i + 1) * Packet.MAX_PACKET_SIZE).slice();
+            datagramViews[i] = new PacketView(datagramBuffers[i]);
+        }
+        this.selector = Selector.open();
+        datagramChannel.configureBlocking(false);
+        this.selectionKey = datagramChannel.register(selector, SelectionKey.OP_READ);
     }
 
+    public boolean isDatagram() {
+        return datagramChannel != null;
+    }
+
+    public Channel getChannel() {
+        return isDatagram() ? datagramChannel : socketChannel;
+    }
+
+    // Queues a packet that reached us through another channel as if it had been received here,
+    // e.g. the session start the UDP acceptor took before this session's channel existed.
+    public void deliver(PacketView packet) {
+        receivedPackets.add(packet.copy());
+    }
+
+    // Forgets the latched datagram peer so the next session can come from any address,
+    // starting with the peers that asked for a session while this one was running. Returns
+    // false if the handler is tied to its one peer: a TCP connection, or a datagram handler
+    // that was given its peer up front.
+    public boolean releasePeer() {
+        if (latching) {
+            peer = null;
+            receivedPackets.clear();
+            pendingWrites.clear(); // Left over if the last session failed while sending
+            pendingWriteBytes = 0;
+            Iterator<Map.Entry<SocketAddress, PacketView>> waiting = waitingSessions.entrySet().iterator();
+            if (waiting.hasNext()) {
+                Map.Entry<SocketAddress, PacketView> next = waiting.next();
+                waiting.remove();
+                peer = next.getKey();
+                receivedPackets.add(next.getValue());
+            }
+        }
+        return latching;
+    }
+
+    // Sends a packet right away, together with anything still queued before it.
     public void sendPacket(Packet packet) throws IOException {
+        queuePacket(packet);
+        flush();
+    }
+
+    // Encodes a packet into the send queue. It is written once the queue passes the byte
+    // threshold, on the next explicit flush, or before the handler blocks waiting to receive.
+    public void queuePacket(Packet packet) throws IOException {
         byte[] packetBytes = packet.toBytes();
-        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + packetBytes.length);
-        buffer.putInt(packetBytes.length);
-        buffer.put(packetBytes);
-        buffer.flip();
-        while (buffer.hasRemaining()) {
-            socketChannel.write(buffer);
+        if (!isDatagram()) {
+            ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+            lengthBuffer.putInt(packetBytes.length);
+            lengthBuffer.flip();
+            pendingWrites.add(lengthBuffer);
         }
+        pendingWrites.add(ByteBuffer.wrap(packetBytes));
+        pendingWriteBytes += packetBytes.length;
        // System.out.println("Sent packet: " + packet.getSequenceNumber());
+        if (pendingWriteBytes >= FLUSH_THRESHOLD_BYTES) {
+            flush();
+        }
+    }
+
+    public void flush() throws IOException {
+        if (pendingWrites.isEmpty()) {
+            return;
+        }
+        if (isDatagram()) {
+            ByteBuffer datagram;
+            while ((datagram = pendingWrites.peek()) != null) {
+                if (datagramChannel.send(datagram, peer) == 0) {
+                    awaitWritable(); // Socket send buffer is full
+                } else {
+                    pendingWrites.poll();
+                }
+            }
+        } else {
+            ByteBuffer[] buffers = pendingWrites.toArray(new ByteBuffer[0]);
+            int offset = 0;
+            while (offset < buffers.length) {
+                if (socketChannel.write(buffers, offset, buffers.length - offset) == 0) {
+                    awaitWritable(); // Partial write, wait for room instead of spinning
+                }
+                while (offset < buffers.length && !buffers[offset].hasRemaining()) {
+                    offset++;
+                }
+            }
+            pendingWrites.clear();
+        }
+        pendingWriteBytes = 0;
     }
 
     public Packet receivePacket() throws IOException {
-        ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
-        while (lengthBuffer.hasRemaining()) {
-            if (socketChannel.read(lengthBuffer) == -1) {
-                throw new IOException("End of stream reached");
+        flush();
+        if (isDatagram()) {
+            while (receivedPackets.isEmpty()) {
+                selector.select();
+                selector.selectedKeys().clear();
+                drainDatagrams();
             }
+            return decode(receivedPackets.poll());
         }
-        lengthBuffer.flip();
-        int packetLength = lengthBuffer.getInt();
+        while (selector.select() == 0) {
+            // Woken up without the channel being readable
+        }
+        selector.selectedKeys().clear();
+        return decode(readFramedPacket());
+    }
 
-        if (packetLength > 0) {
-            ByteBuffer packetBuffer = ByteBuffer.allocate(packetLength);
-            while (packetBuffer.hasRemaining()) {
-                if (socketChannel.read(packetBuffer) == -1) {
-                    throw new IOException("End of stream reached");
+    // Fully decoded receive for control packets, see receiveView.
+    public Packet receivePacket(long timeout) throws IOException {
+        return decode(receiveView(timeout));
+    }
+
+    private static Packet decode(PacketView view) throws IOException {
+        if (checkError(view) == null) {
+            return null;
+        }
+        try {
+            return view.toPacket();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed packet received", e);
+        }
+    }
+
+    // Waits up to timeout milliseconds for the next packet, returns null if none arrived.
+    // Queued packets are only flushed if nothing is ready to read, so replies to a burst of
+    // incoming packets go out together. The view is only valid until the next receive call.
+    // An ERROR packet is thrown as an IOException, here and in every other receive.
+    public PacketView receiveView(long timeout) throws IOException {
+        if (isDatagram()) {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (receivedPackets.isEmpty()) {
+                drainDatagrams();
+                if (!receivedPackets.isEmpty()) {
+                    break;
+                }
+                flush();
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
                 }
+                // Datagrams from other peers can wake us up without producing a packet, so keep waiting
+                if (selector.select(remaining) > 0) {
+                    selector.selectedKeys().clear();
+                }
+            }
+            return checkError(receivedPackets.poll());
+        }
+
+        if (selector.selectNow() == 0) {
+            flush();
+            if (selector.select(timeout) == 0) {
+                return null;
+            }
+        }
+        selector.selectedKeys().clear();
+        return checkError(readFramedPacket());
+    }
+
+    // Returns a packet that is already available without waiting, or null.
+    public PacketView pollView() throws IOException {
+        if (isDatagram()) {
+            if (receivedPackets.isEmpty()) {
+                drainDatagrams();
+            }
+            return checkError(receivedPackets.poll());
+        }
+
+        if (selector.selectNow() == 0) {
+            return null;
+        }
+        selector.selectedKeys().clear();
+        return checkError(readFramedPacket());
+    }
+
+    // An ERROR from the peer ends whatever the caller was waiting for.
+    private static PacketView checkError(PacketView packet) throws IOException {
+        if (packet != null && packet.getOpCode() == OpCode.ERROR) {
+            throw new IOException("Peer reported an error: " + packet.getErrorMessage());
+        }
+        return packet;
+    }
+
+    // Reads one length-prefixed frame into the reused frame buffer. Only called once the channel
+    // is readable, a frame that then stays incomplete for IO_TIMEOUT_MS is given up on.
+    private PacketView readFramedPacket() throws IOException {
+        long deadline = System.currentTimeMillis() + IO_TIMEOUT_MS;
+        frameLengthBuffer.clear();
+        readFrame(frameLengthBuffer, deadline);
+        int packetLength = frameLengthBuffer.getInt(0);
+        if (packetLength < 0 || packetLength > Packet.MAX_PACKET_SIZE) {
+            throw new IOException("Invalid frame length: " + packetLength);
+        }
+
+        if (packetLength > 0) {
+            frameBuffer.clear().limit(packetLength);
+            readFrame(frameBuffer, deadline);
+            try {
+                return frameView.wrap(packetLength);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed packet received", e);
             }
-            packetBuffer.flip();
-            return Packet.fromByteBuffer(packetBuffer);
         }
         return null;
     }
 
+    // Fills the buffer from the socket, waiting on the selector while the rest of the frame is
+    // still on its way instead of spinning on empty reads.
+    private void readFrame(ByteBuffer buffer, long deadline) throws IOException {
+        while (buffer.hasRemaining()) {
+            int bytesRead = socketChannel.read(buffer);
+            if (bytesRead == -1) {
+                throw new IOException("End of stream reached");
+            }
+            if (bytesRead == 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("Timed out waiting for the rest of a packet");
+                }
+                selector.select(remaining);
+                selector.selectedKeys().clear();
+            }
+        }
+    }
+
+    // ACKs are queued rather than written, so a burst of received packets is answered with one write.
     public void sendAck(int sequenceNumber, int sessionId) throws IOException {
         Packet ackPacket = new Packet(OpCode.ACK, sequenceNumber, sessionId, new byte[0]);
-        sendPacket(ackPacket);
+        queuePacket(ackPacket);
     }
 
-    public Packet receiveAck(long timeout) throws IOException {
+    public PacketView receiveAck(long timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
         while (true) {
-            int readyChannels = selector.select(timeout);
-            if (readyChannels == 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
                 return null; // Timeout expired
             }
 
-            Set<SelectionKey> selectedKeys = selector.selectedKeys();
-            for (SelectionKey key : selectedKeys) {
-                if (key.isReadable()) {
-                    Packet packet = receivePacket();
-                    if (packet != null && (packet.getOpCode() == OpCode.ACK || packet.getOpCode() == OpCode.OACK || packet.getOpCode() == OpCode.END_OF_TRANSFER)) {
-                        selectedKeys.remove(key);
-                        return packet;
-                    }
+            PacketView packet = receiveView(remaining);
+            if (packet == null) {
+                return null; // Timeout expired
+            }
+            if (packet.getOpCode() == OpCode.ACK || packet.getOpCode() == OpCode.OACK || packet.getOpCode() == OpCode.END_OF_TRANSFER) {
+                return packet;
+            }
+        }
+    }
+
+    // Reads every datagram already queued in the socket in one go so a window's worth of
+    // packets costs a single selector wake-up.
+    // Only called once every drained view was handed out, so the batch buffers are free again.
+    private void drainDatagrams() throws IOException {
+        int slot = 0;
+        for (int i = 0; i < MAX_DATAGRAMS_PER_BATCH; i++) {
+            ByteBuffer datagramBuffer = datagramBuffers[slot];
+            datagramBuffer.clear();
+            SocketAddress source = datagramChannel.receive(datagramBuffer);
+            if (source == null) {
+                return;
+            }
+            PacketView packet;
+            try {
+                packet = datagramViews[slot].wrap(datagramBuffer.position());
+            } catch (RuntimeException e) {
+                System.out.println("Dropped malformed datagram from " + source);
+                continue;
+            }
+            boolean sessionStart = packet.getOpCode() == OpCode.SESSION_START || packet.getOpCode() == OpCode.HANDSHAKE;
+            if (peer == null) {
+                if (!sessionStart) {
+                    continue; // Stray packet, only a new session may latch the peer
+                }
+                peer = source;
+            } else if (!peer.equals(source)) {
+                // Datagram from someone other than the session peer, remember if it wants a session
+                if (latching && sessionStart && waitingSessions.size() < MAX_WAITING_SESSIONS
+                        && !waitingSessions.containsKey(source)) {
+                    waitingSessions.put(source, packet.copy()); // The batch buffer gets reused
+                }
+                continue;
+            }
+            receivedPackets.add(packet);
+            slot++;
+        }
+    }
+
+    // Releases the handler's selector, the channel itself belongs to the caller.
+    public void close() throws IOException {
+        selector.close();
+    }
+
+    // Waits for room in the socket's send buffer. A peer that stays connected but stops reading
+    // would otherwise hold the session's thread forever.
+    private void awaitWritable() throws IOException {
+        selectionKey.interestOps(SelectionKey.OP_WRITE);
+        try {
+            long deadline = System.currentTimeMillis() + IO_TIMEOUT_MS;
+            while (selector.select(Math.max(1, deadline - System.currentTimeMillis())) == 0) {
+                if (System.currentTimeMillis() >= deadline) {
+                    throw new IOException("Peer stopped reading");
                 }
             }
+            selector.selectedKeys().clear();
+        } finally {
+            selectionKey.interestOps(SelectionKey.OP_READ);
         }
     }
-}
\ No newline at end of file
+}
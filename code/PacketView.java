@@ -0,0 +1,103 @@
+package filetransferappjs;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Read-only view of an encoded packet (see Packet.toBytes) that decodes nothing up front. Header
+// fields are read from the buffer when asked for and the payload is a slice of it, so the
+// DATA/ACK path never builds the filename, options map or timestamp. Control packets are turned
+// into a full Packet with toPacket().
+// A view handed out by PacketHandler sits on one of its receive buffers and is only valid until
+// the handler's next receive call; copy() it to keep it longer.
+public class PacketView {
+    private static final OpCode[] OP_CODES = OpCode.values(); // values() clones the array on every call
+    private static final int SEQUENCE_NUMBER_OFFSET = 1;
+    private static final int SESSION_ID_OFFSET = 5;
+    private static final int FILE_NAME_LENGTH_OFFSET = 9;
+    private static final int MIN_LENGTH = FILE_NAME_LENGTH_OFFSET + 2 * Integer.BYTES; // Up to the data length
+
+    private final ByteBuffer buffer; // The encoded packet starts at index 0
+    private int dataLengthOffset;
+
+    public PacketView(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    // Points the view at the length bytes now in its buffer. Only checks what the getters rely
+    // on, the rest is checked by toPacket().
+    public PacketView wrap(int length) {
+        if (length < MIN_LENGTH || (buffer.get(0) & 0xFF) >= OP_CODES.length) {
+            throw new IllegalArgumentException("Malformed packet");
+        }
+        buffer.limit(length);
+        int fileNameLength = buffer.getInt(FILE_NAME_LENGTH_OFFSET);
+        if (fileNameLength < 0 || fileNameLength > length - MIN_LENGTH) {
+            throw new IllegalArgumentException("Malformed packet");
+        }
+        dataLengthOffset = FILE_NAME_LENGTH_OFFSET + Integer.BYTES + fileNameLength;
+        int dataLength = buffer.getInt(dataLengthOffset);
+        if (dataLength < 0 || dataLength > length - dataLengthOffset - Integer.BYTES) {
+            throw new IllegalArgumentException("Malformed packet");
+        }
+        if (getOpCode() == OpCode.HOLE && (dataLength != Long.BYTES || getHoleLength() < 0)) {
+            throw new IllegalArgumentException("Malformed HOLE packet");
+        }
+        return this;
+    }
+
+    // A view over a locally built packet, e.g. DATA rebuilt from parity.
+    public static PacketView of(Packet packet) {
+        byte[] bytes = packet.toBytes();
+        return new PacketView(ByteBuffer.wrap(bytes)).wrap(bytes.length);
+    }
+
+    public OpCode getOpCode() {
+        return OP_CODES[buffer.get(0) & 0xFF];
+    }
+
+    public int getSequenceNumber() {
+        return buffer.getInt(SEQUENCE_NUMBER_OFFSET);
+    }
+
+    public int getSessionId() {
+        return buffer.getInt(SESSION_ID_OFFSET);
+    }
+
+    public int getDataLength() {
+        return buffer.getInt(dataLengthOffset);
+    }
+
+    // Length of the run of zero bytes a HOLE packet stands for, checked by wrap().
+    public long getHoleLength() {
+        return buffer.getLong(dataLengthOffset + Integer.BYTES);
+    }
+
+    // The text of an ERROR packet.
+    public String getErrorMessage() {
+        return StandardCharsets.UTF_8.decode(getPayload()).toString();
+    }
+
+    // The packet's data, sharing the view's buffer.
+    public ByteBuffer getPayload() {
+        int dataOffset = dataLengthOffset + Integer.BYTES;
+        return buffer.duplicate().limit(dataOffset + getDataLength()).position(dataOffset).slice();
+    }
+
+    // A view over its own copy of the packet, unaffected by later receives.
+    public PacketView copy() {
+        ByteBuffer bytes = ByteBuffer.allocate(buffer.limit());
+        bytes.put(buffer.duplicate().position(0)).clear();
+        return new PacketView(bytes).wrap(buffer.limit());
+    }
+
+    // Fully decodes the packet, for control messages that need the filename or options. Throws
+    // IllegalArgumentException if the packet is malformed.
+    public Packet toPacket() {
+        try {
+            return Packet.fromByteBuffer(buffer.duplicate().position(0));
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Malformed packet", e);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package filetransferappjs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Read-ahead pipeline for the sending side of a transfer. A reader thread fills a bounded ring
+// of block buffers ahead of the sender, each block is encrypted inline or on a shared transform
+// pool, and the sender takes finished blocks in file order. The sender only asks for a block
+// when its sliding window has room, so a full ring stalls the reader and the window ends up
+// throttling disk reads as well. The file is read a SCAN_BYTES chunk at a time so the holes of
+// a sparse file cost few syscalls. Runs of all-zero blocks skip the transform and come out as
+// holes of up to MAX_HOLE_LENGTH each.
+public class PrefetchReader implements AutoCloseable {
+    private static final int SCAN_BYTES = 1024 * 1024;
+    private static final long MAX_HOLE_LENGTH = 64L * 1024 * 1024; // So a huge hole still keeps the receiver hearing from us
+    private static final ExecutorService TRANSFORM_POOL = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "prefetch-transform");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final FileChannel fileChannel;
+    private final int blockSize;
+    private final byte[] key;
+    private final boolean parallelTransform;
+    private final BlockingQueue<Future<Block>> readyBlocks; // The ring, in file order
+    private final BlockingQueue<byte[]> freeBuffers; // Read buffers not currently holding a block
+    private final ByteBuffer zeroChunk; // Compared against, never written
+    private final Thread readerThread;
+    private boolean endOfFile = false;
+
+    // One entry of the ring: an encrypted block, or the length of a run of zero bytes.
+    public static class Block {
+        private final byte[] data;
+        private final long holeLength;
+
+        private Block(byte[] data, long holeLength) {
+            this.data = data;
+            this.holeLength = holeLength;
+        }
+
+        // A DATA packet, or a HOLE packet carrying the run's length as a long.
+        public Packet toPacket(int sequenceNumber, int sessionId) {
+            if (data != null) {
+                return new Packet(OpCode.DATA, sequenceNumber, sessionId, data);
+            }
+            byte[] length = ByteBuffer.allocate(Long.BYTES).putLong(holeLength).array();
+            return new Packet(OpCode.HOLE, sequenceNumber, sessionId, length);
+        }
+    }
+
+    public PrefetchReader(Path path, int blockSize, byte[] key, int depth, boolean parallelTransform)
+            throws IOException {
+        this.fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+        this.blockSize = blockSize;
+        this.key = key;
+        this.parallelTransform = parallelTransform;
+        this.zeroChunk = ByteBuffer.allocateDirect(blockSize * Math.max(1, SCAN_BYTES / blockSize));
+        this.readyBlocks = new ArrayBlockingQueue<>(depth);
+        this.freeBuffers = new ArrayBlockingQueue<>(depth);
+        for (int i = 0; i < depth; i++) {
+            freeBuffers.add(new byte[blockSize]);
+        }
+        this.readerThread = new Thread(this::readBlocks, "prefetch-" + path.getFileName());
+        this.readerThread.setDaemon(true);
+        this.readerThread.start();
+    }
+
+    // Returns the next block, waiting up to timeout milliseconds for the reader to get there.
+    // Returns null if it hasn't yet, so a slow disk never keeps the sender from its ACKs and
+    // retransmissions, or at the end of the file, see isEndOfFile.
+    public Block nextBlock(long timeout) throws IOException {
+        if (endOfFile) {
+            return null;
+        }
+        try {
+            Future<Block> next = readyBlocks.poll(timeout, TimeUnit.MILLISECONDS);
+            if (next == null) {
+                return null;
+            }
+            Block block = next.get(); // At most one block's encryption away once queued
+            if (block == null) {
+                endOfFile = true;
+            }
+            return block;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the next block");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                    : new IOException("Reading block failed", e.getCause());
+        }
+    }
+
+    public boolean isEndOfFile() {
+        return endOfFile;
+    }
+
+    @Override
+    public void close() throws IOException {
+        readerThread.interrupt();
+        fileChannel.close();
+    }
+
+    private void readBlocks() {
+        // Direct, so a read is one copy and the zero checks are vectorized
+        ByteBuffer chunk = ByteBuffer.allocateDirect(zeroChunk.capacity());
+        long position = 0;
+        long holeLength = 0; // Zero bytes read since the last data block or hole
+        try {
+            while (true) {
+                int chunkLength = readFully(chunk, position);
+                position += chunkLength;
+                // Inside a hole the whole chunk is zeros, one comparison covers all of its blocks
+                boolean zeroChunkRead = isZero(chunk, 0, chunkLength);
+                for (int offset = 0; offset < chunkLength; offset += blockSize) {
+                    int length = Math.min(blockSize, chunkLength - offset);
+                    if (zeroChunkRead || isZero(chunk, offset, length)) {
+                        holeLength += length;
+                        if (holeLength >= MAX_HOLE_LENGTH) {
+                            putHole(holeLength);
+                            holeLength = 0;
+                        }
+                        continue;
+                    }
+                    if (holeLength > 0) {
+                        putHole(holeLength);
+                        holeLength = 0;
+                    }
+                    byte[] buffer = freeBuffers.take();
+                    chunk.get(offset, buffer, 0, length);
+                    if (parallelTransform) {
+                        readyBlocks.put(CompletableFuture.supplyAsync(() -> transform(buffer, length), TRANSFORM_POOL));
+                    } else {
+                        readyBlocks.put(CompletableFuture.completedFuture(transform(buffer, length)));
+                    }
+                }
+                if (chunkLength < chunk.capacity()) {
+                    if (holeLength > 0) {
+                        putHole(holeLength);
+                    }
+                    readyBlocks.put(CompletableFuture.completedFuture(null));
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed by the sender
+        } catch (IOException e) {
+            try {
+                readyBlocks.put(CompletableFuture.failedFuture(e));
+            } catch (InterruptedException closed) {
+                // Closed by the sender
+            }
+        }
+    }
+
+    private boolean isZero(ByteBuffer chunk, int offset, int length) {
+        return chunk.slice(offset, length).mismatch(zeroChunk.slice(0, length)) == -1;
+    }
+
+    private void putHole(long holeLength) throws InterruptedException {
+        readyBlocks.put(CompletableFuture.completedFuture(new Block(null, holeLength)));
+    }
+
+    // Reads until the chunk is full or the file ends so every block but the last is full size.
+    private int readFully(ByteBuffer chunk, long position) throws IOException {
+        chunk.clear();
+        while (chunk.hasRemaining()) {
+            if (fileChannel.read(chunk, position + chunk.position()) == -1) {
+                break;
+            }
+        }
+        return chunk.position();
+    }
+
+    private Block transform(byte[] buffer, int length) {
+        byte[] encrypted = EncryptionUtil.xorEncryptDecrypt(buffer, length, key);
+        freeBuffers.add(buffer); // Encrypted into a new array, the read buffer can be reused
+        return new Block(encrypted, 0);
+    }
+}
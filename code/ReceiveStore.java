@@ -0,0 +1,236 @@
+package filetransferappjs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Storage engine for received files: server uploads and client downloads. Decrypted chunks
+// collect in write-behind buffers, each a contiguous run of the file, and a writer thread puts
+// every full run to disk with one positional write while the receiver goes on receiving and
+// ACKing. The receiver only waits once the writer falls WRITE_BEHIND_BUFFERS runs behind. Holes
+// are simply never written, which leaves them sparse. The file is assembled under a temporary
+// name next to its destination and only renamed to its unique receivedFile_ name once
+// complete, so an aborted transfer never leaves a partial file.
+public class ReceiveStore implements AutoCloseable {
+    private static final int WRITE_BEHIND_BYTES = 256 * 1024; // Size of one run
+    private static final int WRITE_BEHIND_BUFFERS = 4;
+    private static final long FSYNC_INTERVAL_MS = 1000;
+    private static final Run END_OF_RUNS = new Run(null, 0);
+
+    public enum Durability {
+        NONE, // Leave writing back to the OS
+        FSYNC_AT_END, // Force the file to disk before it is renamed into place
+        PERIODIC; // Also force it every FSYNC_INTERVAL_MS while the transfer runs
+
+        // Accepts the Server command line names: none, fsync or periodic.
+        public static Durability parse(String name) {
+            switch (name.toLowerCase()) {
+                case "none":
+                    return NONE;
+                case "fsync":
+                    return FSYNC_AT_END;
+                case "periodic":
+                    return PERIODIC;
+                default:
+                    throw new IllegalArgumentException("Unknown durability policy: " + name);
+            }
+        }
+    }
+
+    private final Path dir;
+    private final String fileName;
+    private final Durability durability;
+    private final Path tempPath;
+    private final FileChannel fileChannel;
+    private final BlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<>(WRITE_BEHIND_BUFFERS);
+    private final BlockingQueue<Run> fullRuns = new ArrayBlockingQueue<>(WRITE_BEHIND_BUFFERS); // Room for END_OF_RUNS too
+    private final Thread writerThread;
+    private volatile IOException writeError; // The writer's first failure, thrown on the next call
+    private ByteBuffer writeBehind; // The run being filled
+    private long bufferPosition = 0; // File position of the first buffered byte
+    private long size = 0; // End of the furthest byte written
+    private long lastFsyncTime = System.currentTimeMillis(); // Writer thread only
+    private boolean committed = false;
+
+    // A buffer of data and the file position it goes to.
+    private static class Run {
+        private final ByteBuffer data;
+        private final long position;
+
+        private Run(ByteBuffer data, long position) {
+            this.data = data;
+            this.position = position;
+        }
+    }
+
+    // sizeHint is the expected file size in bytes, or -1 if the sender didn't say.
+    public ReceiveStore(Path dir, String fileName, long sizeHint, Durability durability) throws IOException {
+        this.dir = dir;
+        this.fileName = fileName;
+        this.durability = durability;
+        // Not Files.createTempFile, its owner-only permissions would stick after the rename
+        this.tempPath = dir.resolve(".receive-" + UUID.randomUUID() + ".part");
+        this.fileChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            if (sizeHint > 0 && sizeHint <= Files.getFileStore(dir).getUsableSpace()) {
+                // Sets the final size once up front instead of growing the file with every write.
+                // This reserves no blocks (Java has no fallocate), the file stays sparse until
+                // written, so it guards against neither fragmentation nor running out of space
+                fileChannel.write(ByteBuffer.allocate(1), sizeHint - 1);
+            }
+        } catch (IOException | RuntimeException e) {
+            // The hint comes from the sender, a bad one must not leave the temporary file behind
+            fileChannel.close();
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+        for (int i = 0; i < WRITE_BEHIND_BUFFERS; i++) {
+            freeBuffers.add(ByteBuffer.allocateDirect(WRITE_BEHIND_BYTES));
+        }
+        this.writeBehind = freeBuffers.poll();
+        this.writerThread = new Thread(this::writeRuns, "receive-" + fileName);
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    // Buffers data for the given file position. Writes that continue the buffered run are
+    // coalesced, anything else hands the run to the writer first.
+    public void write(long position, byte[] data) throws IOException {
+        if (writeBehind.position() > 0 && position != bufferPosition + writeBehind.position()) {
+            handOff();
+        }
+        if (writeBehind.position() == 0) {
+            bufferPosition = position;
+        }
+        int offset = 0;
+        while (offset < data.length) {
+            if (!writeBehind.hasRemaining()) {
+                handOff();
+            }
+            int length = Math.min(data.length - offset, writeBehind.remaining());
+            writeBehind.put(data, offset, length);
+            offset += length;
+        }
+    }
+
+    // Leaves length bytes at position unwritten, they read back as zeros without taking up disk
+    // space. Only needs to grow the file when the hole is at its end.
+    public void writeHole(long position, long length) {
+        size = Math.max(size, position + length);
+    }
+
+    // Waits for the writer to put every run to disk, applies the durability policy and renames
+    // the file into place. Returns the final path.
+    public String commit() throws IOException {
+        handOff();
+        try {
+            fullRuns.put(END_OF_RUNS);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the file to be written");
+        }
+        checkWriteError();
+        if (fileChannel.size() < size) {
+            fileChannel.write(ByteBuffer.allocate(1), size - 1); // A trailing hole, truncate never extends
+        }
+        fileChannel.truncate(size); // Drops whatever the size hint set beyond the data
+        if (durability != Durability.NONE) {
+            fileChannel.force(true);
+        }
+        fileChannel.close();
+
+        Path finalPath = Paths.get(FileUtil.generateUniqueFilePath(dir, fileName));
+        Files.move(tempPath, finalPath, StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+        if (durability != Durability.NONE) {
+            forceDirectory();
+        }
+        return finalPath.toString();
+    }
+
+    // Discards the temporary file unless the transfer was committed.
+    @Override
+    public void close() throws IOException {
+        if (!committed) {
+            writerThread.interrupt();
+            fileChannel.close();
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    // Queues the buffered run for the writer and takes a free buffer for the next one, waiting
+    // if the writer is WRITE_BEHIND_BUFFERS runs behind.
+    private void handOff() throws IOException {
+        checkWriteError();
+        if (writeBehind.position() == 0) {
+            return;
+        }
+        writeBehind.flip();
+        size = Math.max(size, bufferPosition + writeBehind.limit());
+        try {
+            fullRuns.put(new Run(writeBehind, bufferPosition));
+            bufferPosition += writeBehind.limit();
+            writeBehind = freeBuffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the writer");
+        }
+    }
+
+    private void checkWriteError() throws IOException {
+        if (writeError != null) {
+            throw new IOException(writeError.getMessage(), writeError);
+        }
+    }
+
+    // Writer thread: puts each run to disk and returns its buffer. After a failure it only
+    // returns buffers, so the receiver never waits on a writer that gave up.
+    private void writeRuns() {
+        try {
+            Run run;
+            while ((run = fullRuns.take()) != END_OF_RUNS) {
+                try {
+                    if (writeError == null) {
+                        writeRun(run);
+                    }
+                } catch (IOException e) {
+                    writeError = e;
+                }
+                run.data.clear();
+                freeBuffers.add(run.data);
+            }
+        } catch (InterruptedException e) {
+            // Discarded by close
+        }
+    }
+
+    private void writeRun(Run run) throws IOException {
+        while (run.data.hasRemaining()) {
+            fileChannel.write(run.data, run.position + run.data.position());
+        }
+        if (durability == Durability.PERIODIC && System.currentTimeMillis() - lastFsyncTime >= FSYNC_INTERVAL_MS) {
+            fileChannel.force(false);
+            lastFsyncTime = System.currentTimeMillis();
+        }
+    }
+
+    // Makes the rename itself durable. Not every platform lets a directory be opened, there the
+    // rename is left to the file system.
+    private void forceDirectory() {
+        try (FileChannel dirChannel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            dirChannel.force(true);
+        } catch (IOException e) {
+            // Best effort
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package filetransferappjs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Receiver side of the sliding window: delivers DATA in order, holds out-of-order packets
+// when selective ACKs are enabled, and decides when a delayed cumulative ACK is due. With FEC
+// it also passes everything through a FecDecoder and delivers the DATA it rebuilds.
+public class ReceiveWindow {
+    // Leaves room for the FEC loss count behind the ranges
+    private static final int MAX_SACK_RANGES = (Packet.MAX_PACKET_SIZE - Packet.HEADER_SIZE - Integer.BYTES)
+            / (2 * Integer.BYTES);
+    private final int windowSize;
+    private final int ackEvery; // Send an ACK after this many packets...
+    private final long ackDelayNanos; // ...or once the oldest unacknowledged packet is this old
+    private final boolean selectiveAck;
+    private final FecDecoder fecDecoder; // Null without FEC
+    private final TreeMap<Integer, PacketView> outOfOrderPackets = new TreeMap<>();
+    private int expectedSeqNum = 0; // The sequence number of the next in-order packet
+    private int unackedCount = 0;
+    private long firstUnackedTime = 0;
+    private boolean ackImmediately = false;
+
+    public ReceiveWindow(int windowSize, int ackEvery, long ackDelayMicros, boolean selectiveAck,
+            FecDecoder fecDecoder) {
+        this.windowSize = windowSize;
+        this.ackEvery = Math.max(1, ackEvery);
+        this.ackDelayNanos = ackDelayMicros * 1000;
+        this.selectiveAck = selectiveAck;
+        this.fecDecoder = fecDecoder;
+    }
+
+    // Accepts a DATA, HOLE, PARITY or END_OF_TRANSFER packet and returns the packets that are now
+    // deliverable in sequence order, which is empty for duplicates and packets that arrive ahead
+    // of a hole.
+    public List<PacketView> receive(PacketView packet) {
+        List<PacketView> deliverable = new ArrayList<>();
+        boolean parity = packet.getOpCode() == OpCode.PARITY;
+        if (!parity) {
+            accept(packet, deliverable);
+        }
+        if (fecDecoder != null) {
+            for (PacketView recovered : fecDecoder.receive(packet, expectedSeqNum)) {
+                accept(recovered, deliverable);
+            }
+        }
+        if (parity && deliverable.isEmpty()) {
+            return deliverable; // Parity alone doesn't need acknowledging
+        }
+
+        for (PacketView delivered : deliverable) {
+            if (delivered.getOpCode() == OpCode.END_OF_TRANSFER) {
+                ackImmediately = true;
+            }
+        }
+        if (unackedCount++ == 0) {
+            firstUnackedTime = System.nanoTime();
+        }
+        return deliverable;
+    }
+
+    private void accept(PacketView packet, List<PacketView> deliverable) {
+        int seqNum = packet.getSequenceNumber();
+
+        if (seqNum == expectedSeqNum) {
+            deliverable.add(packet);
+            expectedSeqNum++;
+            PacketView next;
+            while ((next = outOfOrderPackets.remove(expectedSeqNum)) != null) {
+                deliverable.add(next);
+                expectedSeqNum++;
+            }
+            if (!outOfOrderPackets.isEmpty() || deliverable.size() > 1) {
+                ackImmediately = true; // Filled (part of) a hole, tell the sender right away
+            }
+        } else {
+            if (selectiveAck && seqNum > expectedSeqNum && seqNum < expectedSeqNum + windowSize
+                    && !outOfOrderPackets.containsKey(seqNum)) {
+                outOfOrderPackets.put(seqNum, packet.copy()); // Outlives the receive buffer
+            }
+            // Duplicate or gap, the sender needs to hear about it now. With FEC a gap waits for
+            // the regular delayed ACK, by then the group's parity has usually filled it.
+            if (fecDecoder == null || seqNum < expectedSeqNum) {
+                ackImmediately = true;
+            }
+        }
+    }
+
+    // Forces the next ACK out without waiting, e.g. for a repeated request.
+    public void requestAck() {
+        ackImmediately = true;
+    }
+
+    public boolean hasPendingAck() {
+        return unackedCount > 0 || ackImmediately;
+    }
+
+    public boolean isAckDue() {
+        return ackImmediately || unackedCount >= ackEvery
+                || (unackedCount > 0 && System.nanoTime() - firstUnackedTime >= ackDelayNanos);
+    }
+
+    // Milliseconds until the delayed ACK timer fires, for use as a receive timeout.
+    public long getAckDelayRemainingMillis() {
+        long remainingNanos = ackDelayNanos - (System.nanoTime() - firstUnackedTime);
+        return Math.max(1, (remainingNanos + 999_999) / 1_000_000);
+    }
+
+    public int getExpectedSequenceNumber() {
+        return expectedSeqNum;
+    }
+
+    // Builds a cumulative ACK for the last in-order packet. With selective ACKs the data carries
+    // the held out-of-order ranges as (first, last) int pairs so the sender only resends the holes.
+    // With FEC one more int follows, the number of DATA packets found missing so far.
+    public Packet buildAck(int sessionId) {
+        byte[] ranges = new byte[0];
+        if (selectiveAck && !outOfOrderPackets.isEmpty()) {
+            List<int[]> sackRanges = new ArrayList<>();
+            int[] current = null;
+            for (Map.Entry<Integer, PacketView> entry : outOfOrderPackets.entrySet()) {
+                int seqNum = entry.getKey();
+                if (current != null && seqNum == current[1] + 1) {
+                    current[1] = seqNum;
+                } else if (sackRanges.size() == MAX_SACK_RANGES) {
+                    break; // The rest is reported once the first holes are filled
+                } else {
+                    current = new int[] { seqNum, seqNum };
+                    sackRanges.add(current);
+                }
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(sackRanges.size() * 2 * Integer.BYTES);
+            for (int[] range : sackRanges) {
+                buffer.putInt(range[0]);
+                buffer.putInt(range[1]);
+            }
+            ranges = buffer.array();
+        }
+        if (fecDecoder != null) {
+            ranges = ByteBuffer.allocate(ranges.length + Integer.BYTES).put(ranges)
+                    .putInt(fecDecoder.getLostCount()).array();
+        }
+
+        unackedCount = 0;
+        ackImmediately = false;
+        return new Packet(OpCode.ACK, expectedSeqNum - 1, sessionId, ranges);
+    }
+}
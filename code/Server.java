@@ -2,25 +2,45 @@ package filetransferappjs;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 public class Server {
     public static void main(String[] args) throws NoSuchAlgorithmException {
         if (args.length < 1) {
-            System.out.println("Usage: java Server <Port>");
+            System.out.println("Usage: java Server <Port> [tcp/udp] [socketBufferSize] [maxBytesPerSecond] [sessionBytesPerSecond] [none/fsync/periodic]");
             return;
         }
 
         int port = Integer.parseInt(args[0]);
         int windowSize = 32;
+        String transport = args.length > 1 ? args[1].toLowerCase() : "tcp";
+        int socketBufferSize = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        long maxBytesPerSecond = args.length > 3 ? Long.parseLong(args[3]) : 0; // 0 = unlimited
+        long sessionBytesPerSecond = args.length > 4 ? Long.parseLong(args[4]) : 0;
+        ReceiveStore.Durability durability = args.length > 5 ? ReceiveStore.Durability.parse(args[5])
+                : ReceiveStore.Durability.NONE;
+        // Shared by all session workers so the global cap covers the whole server
+        BandwidthScheduler scheduler = new BandwidthScheduler(maxBytesPerSecond, sessionBytesPerSecond);
+
+        // This thread only accepts, every session runs on a SessionWorker of its own
+        if ("udp".equals(transport)) {
+            acceptDatagrams(port, socketBufferSize, windowSize, scheduler, durability);
+            return;
+        }
+
         try (Selector selector = Selector.open();
              ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()) {
-
             serverSocketChannel.bind(new InetSocketAddress(port));
             serverSocketChannel.configureBlocking(false);
             serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
@@ -33,26 +53,100 @@ public class Server {
 
                 while (keyIterator.hasNext()) {
                     SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
 
                     if (key.isAcceptable()) {
                         SocketChannel clientSocketChannel = serverSocketChannel.accept();
-                        clientSocketChannel.configureBlocking(false);
-                        clientSocketChannel.register(selector, SelectionKey.OP_READ);
-
-                        System.out.println("Client connected");
-                        ServerSession serverSession = new ServerSession(clientSocketChannel, windowSize);
+                        if (clientSocketChannel != null) {
+                            clientSocketChannel.configureBlocking(false);
+                            // Only gets a worker once the first packet is there, a silent client holds no thread
+                            clientSocketChannel.register(selector, SelectionKey.OP_READ);
+                            System.out.println("Client connected");
+                        }
+                    } else if (key.isValid() && key.isReadable()) {
+                        key.cancel(); // The session's PacketHandler takes over the channel
+                        SocketChannel clientSocketChannel = (SocketChannel) key.channel();
                         try {
-                            serverSession.startSession();
-                        } catch (Exception e) {
-                            System.out.println("Error in session: " + e.getMessage());
+                            new SessionWorker(new PacketHandler(clientSocketChannel), windowSize, scheduler,
+                                    durability).start();
+                        } catch (IOException e) {
+                            System.out.println("Could not set up connection: " + e.getMessage());
+                            clientSocketChannel.close();
                         }
                     }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Server exception: " + e.getMessage());
+        }
+    }
 
-                    keyIterator.remove();
+    // UDP mode: this thread receives the first packet of every session on the port and gives
+    // the session its own channel, bound to the same port with SO_REUSEPORT and connected to
+    // the client. The kernel delivers a peer's datagrams to the socket connected to it, so the
+    // session runs on its own worker like a TCP connection would, and the session's sliding
+    // window provides sequencing, acknowledgment and retransmission.
+    private static void acceptDatagrams(int port, int socketBufferSize, int windowSize,
+            BandwidthScheduler scheduler, ReceiveStore.Durability durability) {
+        DatagramChannel listenChannel = null;
+        try {
+            listenChannel = DatagramChannel.open();
+            if (!listenChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                // No per-session channels: one worker latches onto one client after another
+                listenChannel.bind(new InetSocketAddress(port));
+                new SessionWorker(new PacketHandler(listenChannel, null, socketBufferSize), windowSize, scheduler,
+                        durability).start();
+                System.out.println("SO_REUSEPORT is not supported, serving one UDP client at a time on port " + port);
+                return;
+            }
+            listenChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            listenChannel.bind(new InetSocketAddress(port));
+            System.out.println("Server is listening for UDP on port " + port);
+
+            ByteBuffer buffer = ByteBuffer.allocate(Packet.MAX_PACKET_SIZE);
+            PacketView packet = new PacketView(buffer);
+            Map<SocketAddress, DatagramChannel> sessionChannels = new HashMap<>();
+            while (true) {
+                buffer.clear();
+                SocketAddress source = listenChannel.receive(buffer);
+                try {
+                    packet.wrap(buffer.position());
+                } catch (RuntimeException e) {
+                    System.out.println("Dropped malformed datagram from " + source);
+                    continue;
+                }
+                if (packet.getOpCode() != OpCode.SESSION_START && packet.getOpCode() != OpCode.HANDSHAKE) {
+                    continue; // Stray packet, or one that beat its session's channel to the connect
+                }
+                sessionChannels.values().removeIf(channel -> !channel.isOpen());
+                if (sessionChannels.containsKey(source)) {
+                    continue; // Retransmitted session start, the session already has its channel
+                }
+
+                DatagramChannel sessionChannel = DatagramChannel.open();
+                try {
+                    sessionChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    sessionChannel.bind(new InetSocketAddress(port));
+                    sessionChannel.connect(source);
+                    PacketHandler packetHandler = new PacketHandler(sessionChannel, source, socketBufferSize);
+                    packetHandler.deliver(packet);
+                    sessionChannels.put(source, sessionChannel);
+                    new SessionWorker(packetHandler, windowSize, scheduler, durability).start();
+                    System.out.println("Client connected from " + source);
+                } catch (IOException e) {
+                    System.out.println("Could not set up session for " + source + ": " + e.getMessage());
+                    sessionChannel.close();
                 }
             }
         } catch (IOException e) {
             System.out.println("Server exception: " + e.getMessage());
+            try {
+                if (listenChannel != null) {
+                    listenChannel.close();
+                }
+            } catch (IOException closeException) {
+                // Exiting anyway
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -1,160 +1,345 @@
 package filetransferappjs;
 
 import java.io.*;
-import java.nio.channels.SocketChannel;
-import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.Queue;
+import java.util.HashMap;
+import java.util.Map;
 
 public class ServerSession {
+    private static final long IDLE_TIMEOUT_MS = 30000; // Give up on a peer that stays silent this long
+    private static final int MAX_WINDOW_SIZE = 4096; // Bounds what one client can make us hold in memory
+    private static final long MAX_ACK_DELAY_MICROS = 1_000_000;
+    private static final int MAX_ERROR_MESSAGE_BYTES = 512;
     private final PacketHandler packetHandler;
     private final SlidingWindow slidingWindow;
+    private final BandwidthScheduler scheduler;
+    private final ReceiveStore.Durability durability;
     private int sessionId;
     private byte[] key;
+    private final int defaultWindowSize;
+    private boolean sessionEnded;
+    private boolean uploadFailed; // The last upload could not be stored, its END_OF_TRANSFER gets ERROR
+    // Options negotiated by the current client, see resetOptions for the defaults
+    private int ackEvery; // Receiver ACK policy, the defaults ACK every packet
+    private long ackDelayMicros;
+    private boolean selectiveAck;
+    private int blockSize; // DATA payload size for downloads
+    private int priority;
+    private String fec; // "xor" or "rs" when the client asked for forward error correction
+    private int fecGroupSize; // Largest FEC group, the encoder may use smaller ones
 
-    public ServerSession(SocketChannel socketChannel, int defaultWindowSize) throws IOException {
-        this.packetHandler = new PacketHandler(socketChannel);
+    public ServerSession(PacketHandler packetHandler, int defaultWindowSize, BandwidthScheduler scheduler,
+            ReceiveStore.Durability durability) {
+        this.packetHandler = packetHandler;
         this.slidingWindow = new SlidingWindow(defaultWindowSize);
+        this.defaultWindowSize = defaultWindowSize;
+        this.scheduler = scheduler;
+        this.durability = durability;
     }
 
-    public void startSession() throws IOException, NoSuchAlgorithmException {
-        while (true) { // Keep the server running
+    // Serves sessions for as long as the packet handler has peers: the one session of a TCP
+    // connection or UDP session channel, or one client after another on a shared UDP socket
+    // (no SO_REUSEPORT, see Server.acceptDatagrams). A session that fails is
+    // answered with ERROR and logged, it never takes the worker down with it.
+    public void startSession() {
+        do {
             // Reset session state if necessary
             this.sessionId = -1;
             this.key = null;
+            this.sessionEnded = false;
+            this.uploadFailed = false;
+            resetOptions();
 
-            // Initiate session including window size negotiation
-            initiateSession();
-
-            // Main loop for client requests
-            boolean sessionEnded = false;
-            while (!sessionEnded) {
-                Packet requestPacket = packetHandler.receivePacket();
-                if (requestPacket == null) {
-                    // Handle null packet (e.g., client disconnected)
-                    System.out.println("Client disconnected.");
-                    break; // Exit the inner loop to reset session or accept a new connection
-                }
+            try {
+                // Initiate session including window size negotiation
+                initiateSession();
+                serveRequests();
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Error in session: " + e.getMessage());
+                sendError(e.getMessage());
+            }
+        } while (packetHandler.releasePeer());
+    }
 
-                switch (requestPacket.getOpCode()) {
-                    case ACK:
-                        // Simply log or ignore ACKs received after END_OF_TRANSFER
-                        System.out.println("ACK received for packet: " + requestPacket.getSequenceNumber());
-                        break;
-                    case RRQ:
-                        handleDownload(requestPacket.getFileName());
-                        break;
-                    case WRQ:
-                        handleUpload(requestPacket.getFileName());
-                        break;
-                    case OACK:
-                        handleOack(requestPacket);
-                        break;
-                    case END_OF_TRANSFER:
-                        System.out.println("End of transfer and session received.");
-                        sessionEnded = true; // End the current session, but keep the server running
-                        break;
-                    default:
-                        System.out.println("Unsupported operation: " + requestPacket.getOpCode());
+    // Main loop for client requests
+    private void serveRequests() throws IOException {
+        while (!sessionEnded) {
+            Packet requestPacket = packetHandler.receivePacket(IDLE_TIMEOUT_MS);
+            if (requestPacket == null) {
+                // Handle null packet (e.g., client disconnected or went silent)
+                System.out.println("Client disconnected.");
+                break; // Ends the session, a shared UDP socket moves on to the next client
+            }
+
+            switch (requestPacket.getOpCode()) {
+                case ACK:
+                    // Simply log or ignore ACKs received after END_OF_TRANSFER
+                    System.out.println("ACK received for packet: " + requestPacket.getSequenceNumber());
+                    break;
+                case RRQ:
+                    handleDownload(requestPacket.getFileName(), null);
+                    break;
+                case WRQ:
+                    handleUpload(requestPacket.getFileName(), null, -1);
+                    break;
+                case HANDSHAKE:
+                    handleHandshake(requestPacket);
+                    break;
+                case OACK:
+                    handleOack(requestPacket);
+                    break;
+                case SESSION_START:
+                    // Retransmitted by the client because our OACK reply was lost
+                    readSessionStart(requestPacket);
+                    break;
+                case END_OF_TRANSFER:
+                    if (requestPacket.getSequenceNumber() >= 0) {
+                        // Retransmitted END_OF_TRANSFER of a finished upload, our ACK or ERROR was lost
+                        if (uploadFailed) {
+                            sendError("Upload failed");
+                        } else {
+                            packetHandler.sendAck(requestPacket.getSequenceNumber(), sessionId);
+                        }
                         break;
-                }
+                    }
+                    System.out.println("End of transfer and session received.");
+                    sessionEnded = true; // End the current session, but keep the server running
+                    break;
+                default:
+                    System.out.println("Unsupported operation: " + requestPacket.getOpCode());
+                    break;
             }
         }
     }
 
+    // Best effort, the peer may be gone already.
+    private void sendError(String message) {
+        byte[] text = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+        text = Arrays.copyOf(text, Math.min(text.length, MAX_ERROR_MESSAGE_BYTES));
+        try {
+            packetHandler.sendPacket(new Packet(OpCode.ERROR, 0, sessionId, text));
+        } catch (IOException | RuntimeException e) {
+            // Nothing left to tell the client through
+        }
+    }
+
     private void initiateSession() throws IOException {
         Packet sessionStartPacket = packetHandler.receivePacket();
         if (sessionStartPacket != null && sessionStartPacket.getOpCode() == OpCode.SESSION_START) {
-            this.sessionId = Integer.parseInt(sessionStartPacket.getOptions().get("sessionId"));
-            this.key = parseKeyString(sessionStartPacket.getOptions().get("key"));
+            readSessionStart(sessionStartPacket);
             System.out.println("Session initiated with ID: " + sessionId + "Key Exchange Succesful.");
+        } else if (sessionStartPacket != null && sessionStartPacket.getOpCode() == OpCode.HANDSHAKE) {
+            handleHandshake(sessionStartPacket);
+        } else {
+            throw new IOException("Expected SESSION_START or HANDSHAKE packet");
+        }
+    }
+
+    // Fast path: session id, binary key, options and the request arrive in one packet. The OACK
+    // confirming the options goes out with the upload's first ACK or the download's first window.
+    private void handleHandshake(Packet handshakePacket) throws IOException {
+        this.sessionId = handshakePacket.getSessionId();
+        this.key = handshakePacket.getData();
+        if (key == null) {
+            throw new IllegalArgumentException("HANDSHAKE without a key");
+        }
+        applyOptions(handshakePacket.getOptions());
+        System.out.println("Session initiated with ID: " + sessionId + " via handshake.");
+
+        Packet oackPacket = new Packet(OpCode.OACK, getConfirmedOptions());
+        if ("WRQ".equals(handshakePacket.getOptions().get("request"))) {
+            long sizeHint = parseOption(handshakePacket.getOptions(), "tsize", -1, -1, Long.MAX_VALUE);
+            handleUpload(handshakePacket.getFileName(), oackPacket, sizeHint);
         } else {
-            throw new IOException("Expected SESSION_START packet");
+            handleDownload(handshakePacket.getFileName(), oackPacket);
         }
     }
 
+    private void readSessionStart(Packet sessionStartPacket) {
+        Map<String, String> options = sessionStartPacket.getOptions();
+        this.sessionId = (int) parseOption(options, "sessionId", -1, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        this.key = parseKeyString(options.get("key"));
+    }
+
     private void handleOack(Packet oackPacket) throws IOException {
-        if (oackPacket.getOptions().containsKey("windowSize")) {
-            int clientWindowSize = Integer.parseInt(oackPacket.getOptions().get("windowSize"));
+        applyOptions(oackPacket.getOptions());
+
+        // Send an OACK back to the client confirming the window size the server
+        // adjusted to, so it can't be mistaken for a DATA acknowledgment
+        packetHandler.sendPacket(new Packet(OpCode.OACK, getConfirmedOptions()));
+    }
+
+    // What a client that sends no options gets. A shared UDP socket reuses its session object,
+    // so nothing the previous client negotiated may carry over.
+    private void resetOptions() {
+        slidingWindow.setWindowSize(defaultWindowSize);
+        ackEvery = 1;
+        ackDelayMicros = 0;
+        selectiveAck = false;
+        blockSize = Packet.MAX_PACKET_SIZE - Packet.HEADER_SIZE;
+        priority = BandwidthScheduler.PRIORITY_BULK;
+        fec = "none";
+        fecGroupSize = 16;
+    }
+
+    // Rejects the whole request with an IllegalArgumentException if any option is malformed.
+    private void applyOptions(Map<String, String> options) {
+        if (options.containsKey("windowSize")) {
+            int clientWindowSize = (int) parseOption(options, "windowSize", 0, 1, MAX_WINDOW_SIZE);
             slidingWindow.setWindowSize(clientWindowSize);
             System.out.println("Adjusted window size to: " + clientWindowSize);
         }
+        int maxBlockSize = Packet.MAX_PACKET_SIZE - Packet.HEADER_SIZE;
+        blockSize = (int) Math.min(maxBlockSize, parseOption(options, "blockSize", blockSize, 1, Integer.MAX_VALUE));
+        ackEvery = (int) parseOption(options, "ackEvery", ackEvery, 1, MAX_WINDOW_SIZE);
+        ackDelayMicros = parseOption(options, "ackDelayUs", ackDelayMicros, 0, MAX_ACK_DELAY_MICROS);
+        if (options.containsKey("sack")) {
+            selectiveAck = Boolean.parseBoolean(options.get("sack"));
+        }
+        if (options.containsKey("priority")) {
+            priority = "interactive".equals(options.get("priority")) ? BandwidthScheduler.PRIORITY_INTERACTIVE
+                    : BandwidthScheduler.PRIORITY_BULK;
+        }
+        // Only for the request that asks, clients that don't know PARITY never get one
+        fec = options.getOrDefault("fec", "none");
+        if (!"xor".equals(fec) && !"rs".equals(fec)) {
+            fec = "none";
+        }
+        fecGroupSize = (int) Math.min(ErasureCode.MAX_SHARDS,
+                parseOption(options, "fecGroup", fecGroupSize, 2, Integer.MAX_VALUE));
+        if (!"none".equals(fec)) {
+            // A PARITY packet carries a whole block plus its own header
+            blockSize = Math.min(blockSize, Packet.MAX_PACKET_SIZE - Packet.HEADER_SIZE - FecEncoder.PARITY_OVERHEAD);
+        }
+    }
 
-        // Send a message to the client indicating that the server has adjusted its
-        // window size
-        Packet ackPacket = new Packet(OpCode.ACK, 0, sessionId,
-                ("Adjusted window size to: " + slidingWindow.getWindowSize()).getBytes());
-        packetHandler.sendPacket(ackPacket);
+    // Reads a whole number option, defaultValue if the client didn't send it. Anything that
+    // isn't a number between min and max rejects the request.
+    private static long parseOption(Map<String, String> options, String name, long defaultValue, long min, long max) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long parsed = Long.parseLong(value.trim());
+            if (parsed >= min && parsed <= max) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below like an out of range value
+        }
+        throw new IllegalArgumentException("Invalid " + name + " option: " + value);
+    }
+
+    private Map<String, String> getConfirmedOptions() {
+        Map<String, String> options = new HashMap<>();
+        options.put("windowSize", slidingWindow.getWindowSize());
+        options.put("blockSize", Integer.toString(blockSize));
+        options.put("ackEvery", Integer.toString(ackEvery));
+        options.put("ackDelayUs", Long.toString(ackDelayMicros));
+        options.put("sack", Boolean.toString(selectiveAck));
+        options.put("priority", priority == BandwidthScheduler.PRIORITY_INTERACTIVE ? "interactive" : "bulk");
+        options.put("fec", fec);
+        options.put("fecGroup", Integer.toString(fecGroupSize));
+        return options;
     }
 
-    private void handleUpload(String filename) throws IOException {
-        String uniqueFilePath = FileUtil.writeFile(filename, new byte[0], true); // Initialize file
+    // replyPacket is the handshake's OACK, which also tells the client the request was accepted;
+    // for a plain WRQ the receive window's initial ACK -1 does that. sizeHint is the client's
+    // tsize option, -1 if it didn't send one.
+    private void handleUpload(String filename, Packet replyPacket, long sizeHint) throws IOException {
+        uploadFailed = false;
+        FecDecoder fecDecoder = "none".equals(fec) ? null : new FecDecoder("rs".equals(fec), sessionId);
+        ReceiveWindow receiveWindow = new ReceiveWindow(Integer.parseInt(slidingWindow.getWindowSize()), ackEvery,
+                ackDelayMicros, selectiveAck, fecDecoder);
+        packetHandler.queuePacket(replyPacket != null ? replyPacket : receiveWindow.buildAck(sessionId));
 
-        try (FileOutputStream fos = new FileOutputStream(uniqueFilePath, true)) { // Append mode
+        try (ReceiveStore uploadStore = new ReceiveStore(FileUtil.SERVER_DIR, filename, sizeHint, durability)) {
             boolean fileTransferComplete = false;
+            long filePosition = 0;
 
             while (!fileTransferComplete) {
-                Packet dataPacket = packetHandler.receivePacket();
+                long timeout = receiveWindow.hasPendingAck() ? receiveWindow.getAckDelayRemainingMillis() : IDLE_TIMEOUT_MS;
+                PacketView dataPacket = packetHandler.receiveView(timeout);
 
                 if (dataPacket == null) {
+                    if (receiveWindow.hasPendingAck()) {
+                        packetHandler.queuePacket(receiveWindow.buildAck(sessionId)); // Delayed ACK timer fired
+                        continue;
+                    }
                     System.out.println("Unexpected end of connection.");
                     break;
                 }
 
-                if (dataPacket.getOpCode() == OpCode.END_OF_TRANSFER) {
-                    slidingWindow.acknowledgePacket(dataPacket.getSequenceNumber());
-                    packetHandler.sendAck(dataPacket.getSequenceNumber(), sessionId);
-                    fileTransferComplete = true;
+                OpCode opCode = dataPacket.getOpCode();
+                if (opCode == OpCode.DATA || opCode == OpCode.HOLE || opCode == OpCode.PARITY
+                        || opCode == OpCode.END_OF_TRANSFER) {
+                    for (PacketView inOrderPacket : receiveWindow.receive(dataPacket)) {
+                        if (inOrderPacket.getOpCode() == OpCode.END_OF_TRANSFER) {
+                            fileTransferComplete = true;
+                        } else if (inOrderPacket.getOpCode() == OpCode.HOLE) {
+                            long holeLength = inOrderPacket.getHoleLength();
+                            uploadStore.writeHole(filePosition, holeLength);
+                            filePosition += holeLength;
+                        } else {
+                            byte[] decryptedData = EncryptionUtil.xorEncryptDecrypt(inOrderPacket.getPayload(), key);
+                            uploadStore.write(filePosition, decryptedData);
+                            filePosition += decryptedData.length;
+                        }
+                    }
                 } else {
-                    byte[] decryptedData = EncryptionUtil.xorEncryptDecrypt(dataPacket.getData(), key);
-                    fos.write(decryptedData);
-                    slidingWindow.acknowledgePacket(dataPacket.getSequenceNumber());
-                    packetHandler.sendAck(dataPacket.getSequenceNumber(), sessionId);
+                    receiveWindow.requestAck(); // Repeated WRQ or HANDSHAKE, our reply was lost
                 }
+
+                // The END_OF_TRANSFER itself is only acknowledged once the file is committed
+                if (receiveWindow.isAckDue() && !fileTransferComplete) {
+                    packetHandler.queuePacket(receiveWindow.buildAck(sessionId));
+                }
+            }
+
+            if (fileTransferComplete) {
+                System.out.println("Uploaded file saved as: " + uploadStore.commit());
+                packetHandler.queuePacket(receiveWindow.buildAck(sessionId));
             }
         } catch (IOException e) {
             System.err.println("Error writing uploaded file: " + e.getMessage());
+            uploadFailed = true;
+            sendError("Upload of " + filename + " failed: " + e.getMessage());
         }
 
         System.out.println("Upload of '" + filename + "' completed.");
     }
 
-    private void handleDownload(String filename) throws IOException {
+    // replyPacket is the handshake's OACK, queued so it leaves in the same write as the first window.
+    private void handleDownload(String filename, Packet replyPacket) throws IOException {
         String filePath = FileUtil.SERVER_DIR + File.separator + filename;
+        TransferSender sender = new TransferSender(packetHandler, slidingWindow, sessionId, scheduler, priority);
+        FecEncoder fecEncoder = "none".equals(fec) ? null
+                : new FecEncoder("rs".equals(fec), fecGroupSize, blockSize, sessionId);
+        if (replyPacket != null) {
+            packetHandler.queuePacket(replyPacket);
+        }
 
-        try (InputStream fileStream = Files.newInputStream(Paths.get(filePath))) {
-            byte[] buffer = new byte[Packet.MAX_PACKET_SIZE - Packet.HEADER_SIZE];
-            int bytesRead;
-            while ((bytesRead = fileStream.read(buffer)) != -1) {
-                byte[] dataChunk = Arrays.copyOf(buffer, bytesRead); // Copy only the bytes that were read
-                byte[] encryptedContent = EncryptionUtil.xorEncryptDecrypt(dataChunk, key);
-
-                Packet dataPacket = new Packet(OpCode.DATA, slidingWindow.getNextSequenceNumber(), sessionId,
-                        encryptedContent);
-                slidingWindow.queuePacket(dataPacket);
-
-                packetHandler.sendPacket(dataPacket);
-            }
+        try {
+            sender.sendFile(Paths.get(filePath), blockSize, key, fecEncoder);
         } catch (IOException ex) {
             System.out.println("Error during file download: " + ex.getMessage());
         }
 
-        // Handle retransmissions
-        Queue<Packet> packetsForRetransmission = slidingWindow.getPacketsForRetransmission();
-        for (Packet packet : packetsForRetransmission) {
-            packetHandler.sendPacket(packet);
+        if (sender.sendEndOfTransfer()) {
+            System.out.println("End of transfer and session received.");
+            sessionEnded = true; // The client ACKed and moved on, only its ACK got lost
         }
 
-        Packet endOfTransferPacket = new Packet(OpCode.END_OF_TRANSFER, slidingWindow.getNextSequenceNumber(),
-                sessionId, new byte[0]);
-        packetHandler.sendPacket(endOfTransferPacket);
-
         System.out.println("File download completed and END_OF_TRANSFER packet sent for: " + filename);
     }
 
     private byte[] parseKeyString(String keyStr) {
+        if (keyStr == null || keyStr.length() < 2) {
+            throw new IllegalArgumentException("Invalid key option: " + keyStr);
+        }
         keyStr = keyStr.substring(1, keyStr.length() - 1); // Remove brackets
         String[] byteValues = keyStr.split(",\\s*");
         byte[] bytes = new byte[byteValues.length];
@@ -0,0 +1,43 @@
+package filetransferappjs;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs the sessions of one TCP connection or UDP session channel on a thread of its own. The
+// acceptor starts a worker for every new session once its first packet is there, so a client
+// never waits behind another transfer, and the OS spreads the workers over the cores. A session
+// never leaves its worker, so its SlidingWindow and state need no locking.
+public class SessionWorker extends Thread {
+    private static final AtomicInteger workerCount = new AtomicInteger();
+
+    private final PacketHandler packetHandler;
+    private final int windowSize;
+    private final BandwidthScheduler scheduler;
+    private final ReceiveStore.Durability durability;
+
+    public SessionWorker(PacketHandler packetHandler, int windowSize, BandwidthScheduler scheduler,
+            ReceiveStore.Durability durability) {
+        super("session-" + workerCount.getAndIncrement());
+        this.packetHandler = packetHandler;
+        this.windowSize = windowSize;
+        this.scheduler = scheduler;
+        this.durability = durability;
+    }
+
+    @Override
+    public void run() {
+        try {
+            ServerSession serverSession = new ServerSession(packetHandler, windowSize, scheduler, durability);
+            serverSession.startSession();
+        } catch (RuntimeException e) {
+            System.out.println("Error in session: " + e.getMessage());
+        } finally {
+            try {
+                packetHandler.close();
+                packetHandler.getChannel().close();
+            } catch (IOException e) {
+                System.out.println("Session worker exception: " + e.getMessage());
+            }
+        }
+    }
+}
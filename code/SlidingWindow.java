@@ -1,41 +1,74 @@
 package filetransferappjs;
 
+import java.nio.ByteBuffer;
 import java.time.Instant;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.Set;
 
+// Not synchronized: a window belongs to one session, and a session stays on its one worker thread.
 public class SlidingWindow {
     private int windowSize;
     private int base = 0; // The sequence number of the oldest unacknowledged packet
     private int nextSeqNum = 0; // The sequence number for the next packet to be sent
     private final Queue<Packet> packetQueue = new LinkedList<>();
     private final long retransmissionTimeoutMs = 2000; // Retransmission timeout in milliseconds
+    private final Set<Integer> selectivelyAcked = new HashSet<>(); // Received out of order by the peer
+    private final Set<Integer> fastRetransmitted = new HashSet<>(); // Holes already resent without waiting
+    private int highestSelectiveAck = -1;
 
     public SlidingWindow(int windowSize) {
         this.windowSize = windowSize;
     }
 
-    public synchronized void queuePacket(Packet packet) {
-        if (canSendNewPacket()) {
-            packet.setSequenceNumber(nextSeqNum);
-            packet.markAsSent();
-            packetQueue.add(packet);
-            nextSeqNum = (nextSeqNum + 1) % Integer.MAX_VALUE; // Handle sequence number wrapping if necessary
+    // Tracks a packet that already carries its sequence number from getNextSequenceNumber().
+    // Returns false without queuing if the window is full.
+    public boolean queuePacket(Packet packet) {
+        if (!canSendNewPacket()) {
+            return false;
         }
+        packet.markAsSent();
+        packetQueue.add(packet);
+        return true;
     }
 
-    public synchronized void acknowledgePacket(int ackSeqNum) {
+    public void acknowledgePacket(int ackSeqNum) {
         while (!packetQueue.isEmpty() && packetQueue.peek().getSequenceNumber() <= ackSeqNum) {
             packetQueue.poll();
             base = (base + 1) % Integer.MAX_VALUE; // Handle sequence number wrapping if necessary
         }
+        selectivelyAcked.removeIf(seqNum -> seqNum <= ackSeqNum);
+        fastRetransmitted.removeIf(seqNum -> seqNum <= ackSeqNum);
     }
 
-    public synchronized Queue<Packet> getPacketsForRetransmission() {
+    // Applies a cumulative ACK plus the selective ACK ranges it carries (see ReceiveWindow.buildAck).
+    public void acknowledgePacket(PacketView ackPacket) {
+        int ackSeqNum = ackPacket.getSequenceNumber();
+        acknowledgePacket(ackSeqNum);
+        ByteBuffer ranges = ackPacket.getPayload();
+        while (ranges.remaining() >= 2 * Integer.BYTES) {
+            int first = ranges.getInt();
+            int last = ranges.getInt();
+            for (int seqNum = Math.max(first, ackSeqNum + 1); seqNum <= last && seqNum < nextSeqNum; seqNum++) {
+                selectivelyAcked.add(seqNum);
+            }
+            highestSelectiveAck = Math.max(highestSelectiveAck, last);
+        }
+    }
+
+    // Returns the packets due for retransmission. The caller stamps each one with markAsSent()
+    // when it really goes out, so time spent waiting to send doesn't count toward the timeout.
+    public Queue<Packet> getPacketsForRetransmission() {
         Queue<Packet> packetsForRetransmission = new LinkedList<>();
         for (Packet packet : packetQueue) {
-            if (Instant.now().minusMillis(packet.getLastSent().toEpochMilli()).toEpochMilli() > retransmissionTimeoutMs) {
-                packet.markAsSent(); // Update the last sent time before retransmission
+            int seqNum = packet.getSequenceNumber();
+            if (selectivelyAcked.contains(seqNum)) {
+                continue; // The peer already holds it
+            }
+            // A hole below a selectively acknowledged packet is resent once right away
+            boolean hole = seqNum < highestSelectiveAck && fastRetransmitted.add(seqNum);
+            if (hole || Instant.now().minusMillis(packet.getLastSent().toEpochMilli()).toEpochMilli() > retransmissionTimeoutMs) {
                 packetsForRetransmission.add(packet);
             }
         }
@@ -46,13 +79,31 @@ public class SlidingWindow {
         return packetQueue.size() < windowSize;
     }
 
-    public synchronized int getNextSequenceNumber() {
+    public int getNextSequenceNumber() {
         int currentSeqNum = this.nextSeqNum;
         this.nextSeqNum++;  // Simply increment the next sequence number
         return currentSeqNum;
     }
     
 
+    public boolean isEmpty() {
+        return packetQueue.isEmpty();
+    }
+
+    public long getRetransmissionTimeoutMs() {
+        return retransmissionTimeoutMs;
+    }
+
+    // Clears all in-flight state so the window can be reused for the next transfer.
+    public void reset() {
+        packetQueue.clear();
+        selectivelyAcked.clear();
+        fastRetransmitted.clear();
+        highestSelectiveAck = -1;
+        base = 0;
+        nextSeqNum = 0;
+    }
+
     public boolean isWindowFull() {
         return packetQueue.size() >= windowSize;
     }
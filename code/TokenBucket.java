@@ -0,0 +1,49 @@
+package filetransferappjs;
+
+// Token bucket rate limiter counting bytes. A rate of zero or less means unlimited.
+// Not synchronized: BandwidthScheduler only touches buckets while holding its lock.
+public class TokenBucket {
+    private static final long BURST_NANOS = 50_000_000L; // The bucket holds 50 ms worth of tokens
+    private final long bytesPerSecond;
+    private final long capacity;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        // Always room for a few full packets, or a slow bucket could never grant one
+        this.capacity = Math.max(4L * Packet.MAX_PACKET_SIZE, bytesPerSecond * BURST_NANOS / 1_000_000_000L);
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public boolean isUnlimited() {
+        return bytesPerSecond <= 0;
+    }
+
+    public void refill(long now) {
+        if (isUnlimited()) {
+            return;
+        }
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * bytesPerSecond / 1e9);
+        lastRefill = now;
+    }
+
+    public boolean hasTokens(int bytes) {
+        return isUnlimited() || tokens >= bytes;
+    }
+
+    public void consume(int bytes) {
+        if (!isUnlimited()) {
+            tokens -= bytes;
+        }
+    }
+
+    // Nanoseconds until the bucket holds enough tokens for bytes, assuming nothing else consumes.
+    public long nanosUntil(int bytes) {
+        if (hasTokens(bytes)) {
+            return 0;
+        }
+        return (long) Math.ceil((bytes - tokens) * 1e9 / bytesPerSecond);
+    }
+}
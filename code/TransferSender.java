@@ -0,0 +1,191 @@
+package filetransferappjs;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Sending side of a file transfer, shared by client uploads and server downloads. Reads the
+// file through a PrefetchReader, keeps the sliding window full, adds the FEC parity, asks the
+// bandwidth scheduler before every packet and retransmits whatever the receiver's ACKs leave
+// out. Lives on the session's thread like the SlidingWindow it drives.
+public class TransferSender {
+    private static final long ACK_POLL_TIMEOUT_MS = 100; // How long the sender waits for an ACK before checking timers
+    private static final long IDLE_TIMEOUT_MS = 30000; // Give up on a receiver that stays silent this long
+    private static final int MAX_END_OF_TRANSFER_ATTEMPTS = 5;
+
+    private final PacketHandler packetHandler;
+    private final SlidingWindow slidingWindow;
+    private final int sessionId;
+    private final BandwidthScheduler scheduler;
+    private final BandwidthScheduler.Flow flow;
+    private final Random random = new Random();
+    private double dropRate = 0;
+    private BatchListener batchListener;
+
+    // Told about every batch of packets written, e.g. for the client's throughput log.
+    public interface BatchListener {
+        void batchSent(List<Packet> batch, long startNanos);
+    }
+
+    public TransferSender(PacketHandler packetHandler, SlidingWindow slidingWindow, int sessionId) {
+        this(packetHandler, slidingWindow, sessionId, BandwidthScheduler.unlimited(),
+                BandwidthScheduler.PRIORITY_BULK);
+    }
+
+    public TransferSender(PacketHandler packetHandler, SlidingWindow slidingWindow, int sessionId,
+            BandwidthScheduler scheduler, int priority) {
+        this.packetHandler = packetHandler;
+        this.slidingWindow = slidingWindow;
+        this.sessionId = sessionId;
+        this.scheduler = scheduler;
+        this.flow = scheduler.register(priority);
+    }
+
+    // Simulates losing this fraction of the DATA and PARITY packets on their first send, the
+    // window retransmits them after the timeout unless FEC rebuilds them first.
+    public void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    public void setBatchListener(BatchListener batchListener) {
+        this.batchListener = batchListener;
+    }
+
+    // Sends the file in blocks of blockSize encrypted with key, and returns once the receiver
+    // has acknowledged every block. fecEncoder is null without FEC.
+    public void sendFile(Path path, int blockSize, byte[] key, FecEncoder fecEncoder) throws IOException {
+        slidingWindow.reset();
+        // Prefetch up to two windows ahead, the window itself keeps the reader from running further
+        int prefetchDepth = 2 * Integer.parseInt(slidingWindow.getWindowSize());
+        try (PrefetchReader reader = new PrefetchReader(path, blockSize, key, prefetchDepth,
+                Runtime.getRuntime().availableProcessors() > 1)) {
+            boolean endOfFile = false;
+            long lastAckTime = System.currentTimeMillis();
+            while (!endOfFile || !slidingWindow.isEmpty()) {
+                // Fill the free part of the window and send it as one batch
+                List<Packet> batch = new ArrayList<>();
+                long startNanos = System.nanoTime();
+                while (!endOfFile && slidingWindow.canSendNewPacket()) {
+                    // Only an empty window has nothing better to do than wait for the disk
+                    PrefetchReader.Block block = reader.nextBlock(slidingWindow.isEmpty() ? ACK_POLL_TIMEOUT_MS : 0);
+                    if (block == null) {
+                        if (reader.isEndOfFile()) {
+                            endOfFile = true;
+                            if (fecEncoder != null) {
+                                queueParity(batch, fecEncoder.finish()); // Parity of the last, partial group
+                            }
+                        }
+                        break; // Otherwise not read yet, see to the ACKs meanwhile
+                    }
+
+                    Packet dataPacket = block.toPacket(slidingWindow.getNextSequenceNumber(), sessionId);
+                    acquireBandwidth(dataPacket); // Before queuing, so the retransmission timer starts on send
+                    slidingWindow.queuePacket(dataPacket);
+                    queueWithDrops(batch, dataPacket);
+                    if (fecEncoder != null) {
+                        queueParity(batch, fecEncoder.add(dataPacket));
+                    }
+                }
+                flush(batch, startNanos);
+
+                // Nothing in flight while the disk is slow isn't the receiver's fault
+                if (processAcks(fecEncoder) || slidingWindow.isEmpty()) {
+                    lastAckTime = System.currentTimeMillis();
+                } else if (System.currentTimeMillis() - lastAckTime > IDLE_TIMEOUT_MS) {
+                    throw new IOException("Receiver stopped acknowledging packets");
+                }
+            }
+        }
+    }
+
+    // Returns true if the receiver's session end (END_OF_TRANSFER -1) came instead of the ACK. The
+    // receiver only ends the session after acknowledging, so the ACK was lost and nobody is left
+    // to retry for.
+    public boolean sendEndOfTransfer() throws IOException {
+        Packet endOfTransferPacket = new Packet(OpCode.END_OF_TRANSFER, slidingWindow.getNextSequenceNumber(),
+                sessionId, new byte[0]);
+        for (int attempt = 0; attempt < MAX_END_OF_TRANSFER_ATTEMPTS; attempt++) {
+            packetHandler.sendPacket(endOfTransferPacket);
+            long deadline = System.currentTimeMillis() + slidingWindow.getRetransmissionTimeoutMs();
+            PacketView ackPacket;
+            while ((ackPacket = packetHandler.receiveAck(deadline - System.currentTimeMillis())) != null) {
+                if (ackPacket.getOpCode() == OpCode.ACK
+                        && ackPacket.getSequenceNumber() == endOfTransferPacket.getSequenceNumber()) {
+                    return false;
+                }
+                if (ackPacket.getOpCode() == OpCode.END_OF_TRANSFER && ackPacket.getSequenceNumber() == -1) {
+                    return true;
+                }
+            }
+        }
+        System.out.println("END_OF_TRANSFER was not acknowledged, giving up.");
+        return false;
+    }
+
+    // Waits briefly for an ACK unless nothing is in flight, slides the window over every ACK
+    // that has already arrived so the next fill goes out as one batch, then retransmits whatever
+    // timed out. The FEC encoder, if any, learns the receiver's loss count from the ACKs.
+    // Returns true if an ACK arrived.
+    private boolean processAcks(FecEncoder fecEncoder) throws IOException {
+        boolean acked = false;
+        PacketView ackPacket = slidingWindow.isEmpty() ? packetHandler.pollView()
+                : packetHandler.receiveAck(ACK_POLL_TIMEOUT_MS);
+        while (ackPacket != null) {
+            if (ackPacket.getOpCode() == OpCode.ACK) {
+                slidingWindow.acknowledgePacket(ackPacket);
+                if (fecEncoder != null) {
+                    fecEncoder.onAck(ackPacket);
+                }
+                acked = true;
+            }
+            ackPacket = packetHandler.pollView();
+        }
+
+        List<Packet> retransmissions = new ArrayList<>();
+        long startNanos = System.nanoTime();
+        for (Packet packet : slidingWindow.getPacketsForRetransmission()) {
+            acquireBandwidth(packet);
+            packet.markAsSent(); // After the wait for bandwidth, the timer starts on send
+            packetHandler.queuePacket(packet);
+            retransmissions.add(packet);
+        }
+        flush(retransmissions, startNanos);
+        return acked;
+    }
+
+    // PARITY isn't part of the sliding window, it is never retransmitted.
+    private void queueParity(List<Packet> batch, List<Packet> parityPackets) throws IOException {
+        for (Packet parityPacket : parityPackets) {
+            acquireBandwidth(parityPacket);
+            queueWithDrops(batch, parityPacket);
+        }
+    }
+
+    private void queueWithDrops(List<Packet> batch, Packet packet) throws IOException {
+        if (dropRate > 0 && random.nextDouble() < dropRate) {
+            return;
+        }
+        packetHandler.queuePacket(packet);
+        batch.add(packet);
+    }
+
+    private void flush(List<Packet> batch, long startNanos) throws IOException {
+        packetHandler.flush();
+        if (batchListener != null && !batch.isEmpty()) {
+            batchListener.batchSent(batch, startNanos);
+        }
+    }
+
+    // Waits until the bandwidth scheduler lets this session send the packet. Only if it has to
+    // wait is whatever already queued flushed first, so it isn't held back; a packet granted
+    // right away joins the current batch and its gathering write.
+    private void acquireBandwidth(Packet packet) throws IOException {
+        int bytes = Packet.HEADER_SIZE + packet.getData().length;
+        if (!scheduler.tryAcquire(flow, bytes)) {
+            packetHandler.flush();
+            scheduler.acquire(flow, bytes);
+        }
+    }
+}